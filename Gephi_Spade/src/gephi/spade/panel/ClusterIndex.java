@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.util.Set;
+
+/**
+ * ClusterIndex ---
+ * <p>
+ * The events of every cluster, indexed from the cluster of every event.
+ * </p>
+ *
+ * <p>
+ * The index is laid out like a compressed sparse row matrix: the events of
+ * cluster c are events[offsets[c - minCluster]] up to, but not including,
+ * events[offsets[c - minCluster + 1]], in increasing order. It is built with
+ * a counting sort in two passes over the clusters, so building it takes time
+ * linear in the number of events, and it takes an int per event plus an int
+ * per cluster. Looking up the events of a set of clusters then only touches
+ * the events of those clusters.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ * </p>
+ */
+final class ClusterIndex {
+
+    private final int minCluster;
+    private final int[] offsets;
+    private final int[] events;
+
+    /**
+     * Indexes eventClusters, the cluster of every event
+     */
+    ClusterIndex(int[] eventClusters) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int cluster : eventClusters) {
+            min = Math.min(min, cluster);
+            max = Math.max(max, cluster);
+        }
+        if (eventClusters.length == 0) {
+            min = 0;
+            max = -1;
+        }
+        if ((long) max - min >= Integer.MAX_VALUE - 1) {
+            throw new IllegalArgumentException("Too many clusters to index: " + min + " to " + max);
+        }
+
+        // Count the events of every cluster, then turn the counts into the
+        // offset of each cluster's first event
+        minCluster = min;
+        offsets = new int[max - min + 2];
+        for (int cluster : eventClusters) {
+            offsets[cluster - min + 1]++;
+        }
+        for (int c = 1; c < offsets.length; c++) {
+            offsets[c] += offsets[c - 1];
+        }
+
+        int[] next = new int[offsets.length - 1];
+        System.arraycopy(offsets, 0, next, 0, next.length);
+        events = new int[eventClusters.length];
+        for (int i = 0; i < eventClusters.length; i++) {
+            events[next[eventClusters[i] - min]++] = i;
+        }
+    }
+
+    public int getMinCluster() {
+        return minCluster;
+    }
+
+    public int getMaxCluster() {
+        return minCluster + offsets.length - 2;
+    }
+
+    /**
+     * Returns the number of events indexed
+     */
+    public int getEventCount() {
+        return events.length;
+    }
+
+    /**
+     * Returns the number of events of a cluster, 0 if it has none
+     */
+    public int getEventCount(int cluster) {
+        return getEnd(cluster) - getStart(cluster);
+    }
+
+    /**
+     * Returns where the events of a cluster start in getEvents(), or where
+     * they would if the cluster has none
+     */
+    int getStart(int cluster) {
+        return offsets[clamp(cluster)];
+    }
+
+    /**
+     * Returns where the events of a cluster end in getEvents()
+     */
+    int getEnd(int cluster) {
+        return offsets[clamp(cluster + 1L)];
+    }
+
+    private int clamp(long cluster) {
+        return (int) Math.max(0, Math.min(cluster - minCluster, offsets.length - 1));
+    }
+
+    /**
+     * Returns the events of every cluster one after another; the caller
+     * must not change them
+     */
+    int[] getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the events of a cluster as a compressed set
+     */
+    EventBitmap getBitmap(int cluster) {
+        return EventBitmap.fromSorted(events, getStart(cluster), getEnd(cluster));
+    }
+
+    /**
+     * Adds the arrays of the index to columns, for measuring its memory
+     */
+    void collectColumns(Set<Object> columns) {
+        columns.add(offsets);
+        columns.add(events);
+    }
+}
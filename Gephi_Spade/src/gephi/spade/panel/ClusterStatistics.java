@@ -0,0 +1,211 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Set;
+import org.apache.commons.math.stat.descriptive.StatisticalSummary;
+import org.apache.commons.math.stat.descriptive.StatisticalSummaryValues;
+
+/**
+ * ClusterStatistics ---
+ * <p>
+ * The count, sum and sum of squares of the events of every cluster and
+ * channel, plus the same over all the events.
+ * </p>
+ *
+ * <p>
+ * These are sufficient to derive the mean and variance of any set of
+ * clusters, so the t-test of a selection against all the events costs the
+ * selected clusters times the channels rather than the events times the
+ * channels. The sums are kept from the value of each channel's first event
+ * rather than from 0, so the sums of squares stay small enough that the
+ * variance does not lose its digits to cancellation.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable once built and can be shared between threads.
+ * </p>
+ */
+final class ClusterStatistics {
+
+    private final ClusterIndex index;
+    private final int channels;
+    // What every channel's sums are kept from
+    private final double[] shifts;
+    // Sums of every cluster, at [cluster - minCluster][channel]
+    private final double[][] sums;
+    private final double[][] sumSquares;
+    private final double[] totalSums;
+    private final double[] totalSumSquares;
+
+    private ClusterStatistics(ClusterIndex index, int channels) {
+        int clusters = index.getMaxCluster() - index.getMinCluster() + 1;
+        this.index = index;
+        this.channels = channels;
+        this.shifts = new double[channels];
+        this.sums = new double[clusters][channels];
+        this.sumSquares = new double[clusters][channels];
+        this.totalSums = new double[channels];
+        this.totalSumSquares = new double[channels];
+    }
+
+    /**
+     * Sums the events of every cluster, columns being laid out like
+     * <code>fcsFile.getEventList()</code>
+     */
+    static ClusterStatistics forColumns(ClusterIndex index, double[][] columns) {
+        ClusterStatistics statistics = new ClusterStatistics(index, columns.length);
+        int[] events = index.getEvents();
+        for (int i = 0; i < columns.length; i++) {
+            double[] column = columns[i];
+            double shift = (column.length > 0) ? column[0] : 0.0;
+            statistics.shifts[i] = shift;
+
+            for (int c = 0; c < statistics.sums.length; c++) {
+                int cluster = index.getMinCluster() + c;
+                double sum = 0;
+                double sumSquares = 0;
+                int end = index.getEnd(cluster);
+                for (int k = index.getStart(cluster); k < end; k++) {
+                    double value = column[events[k]] - shift;
+                    sum += value;
+                    sumSquares += value * value;
+                }
+                statistics.sums[c][i] = sum;
+                statistics.sumSquares[c][i] = sumSquares;
+            }
+        }
+        statistics.sumTotals();
+        return statistics;
+    }
+
+    /**
+     * Sums the events of every cluster, held in one float buffer per channel
+     */
+    static ClusterStatistics forColumns(ClusterIndex index, FloatBuffer[] columns) {
+        ClusterStatistics statistics = new ClusterStatistics(index, columns.length);
+        int[] events = index.getEvents();
+        for (int i = 0; i < columns.length; i++) {
+            FloatBuffer column = columns[i];
+            double shift = (column.limit() > 0) ? column.get(0) : 0.0;
+            statistics.shifts[i] = shift;
+
+            for (int c = 0; c < statistics.sums.length; c++) {
+                int cluster = index.getMinCluster() + c;
+                double sum = 0;
+                double sumSquares = 0;
+                int end = index.getEnd(cluster);
+                for (int k = index.getStart(cluster); k < end; k++) {
+                    double value = column.get(events[k]) - shift;
+                    sum += value;
+                    sumSquares += value * value;
+                }
+                statistics.sums[c][i] = sum;
+                statistics.sumSquares[c][i] = sumSquares;
+            }
+        }
+        statistics.sumTotals();
+        return statistics;
+    }
+
+    /**
+     * Sums the events of every cluster in a single pass over the event
+     * blocks, for events that are not held in memory
+     */
+    static ClusterStatistics forBlocks(ClusterIndex index, EventBlockIterator blocks, int clusterColumn,
+            int channels) throws IOException {
+        ClusterStatistics statistics = new ClusterStatistics(index, channels);
+        while (blocks.hasNext()) {
+            double[][] block = blocks.next();
+            if (blocks.getBlockStart() == 0) {
+                for (int i = 0; i < channels; i++) {
+                    statistics.shifts[i] = block[i][0];
+                }
+            }
+
+            double[] clusters = block[clusterColumn];
+            for (int i = 0; i < channels; i++) {
+                double[] column = block[i];
+                double shift = statistics.shifts[i];
+                for (int k = 0; k < column.length; k++) {
+                    int c = (int) clusters[k] - index.getMinCluster();
+                    double value = column[k] - shift;
+                    statistics.sums[c][i] += value;
+                    statistics.sumSquares[c][i] += value * value;
+                }
+            }
+        }
+        statistics.sumTotals();
+        return statistics;
+    }
+
+    private void sumTotals() {
+        for (int c = 0; c < sums.length; c++) {
+            for (int i = 0; i < channels; i++) {
+                totalSums[i] += sums[c][i];
+                totalSumSquares[i] += sumSquares[c][i];
+            }
+        }
+    }
+
+    int getChannelCount() {
+        return channels;
+    }
+
+    /**
+     * Adds the sums of a cluster's events to sums and sumSquares if sign is
+     * 1, or takes them away if it is -1. The sums are kept from the same
+     * values as the cluster's, so they can be passed to summarize().
+     */
+    void addSums(int cluster, int sign, double[] sums, double[] sumSquares) {
+        int c = cluster - index.getMinCluster();
+        if ((c < 0) || (c >= this.sums.length)) {
+            return;
+        }
+        for (int i = 0; i < channels; i++) {
+            sums[i] += sign * this.sums[c][i];
+            sumSquares[i] += sign * this.sumSquares[c][i];
+        }
+    }
+
+    /**
+     * Returns the mean and variance of count events of a channel whose sums,
+     * as added by addSums(), are sum and sumSquares. The minimum and maximum
+     * are not known and are NaN.
+     */
+    StatisticalSummary summarize(int channel, long count, double sum, double sumSquares) {
+        double shift = shifts[channel];
+        if (count == 0) {
+            return new StatisticalSummaryValues(Double.NaN, Double.NaN, 0, Double.NaN, Double.NaN, 0.0);
+        }
+        double variance = (count < 2) ? 0.0 :
+            Math.max(0.0, (sumSquares - sum * sum / count) / (count - 1));
+        return new StatisticalSummaryValues(shift + sum / count, variance, count,
+                Double.NaN, Double.NaN, sum + shift * count);
+    }
+
+    /**
+     * Returns the mean and variance of a channel over all the events
+     */
+    StatisticalSummary getTotalSummary(int channel) {
+        return summarize(channel, index.getEventCount(), totalSums[channel], totalSumSquares[channel]);
+    }
+
+    /**
+     * Adds the arrays of the sums to columns, for measuring their memory
+     */
+    void collectColumns(Set<Object> columns) {
+        columns.add(shifts);
+        columns.add(totalSums);
+        columns.add(totalSumSquares);
+        for (int c = 0; c < sums.length; c++) {
+            columns.add(sums[c]);
+            columns.add(sumSquares[c]);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * EventBitmap ---
+ * <p>
+ * A compressed set of events, e.g. the events of the selected clusters.
+ * </p>
+ *
+ * <p>
+ * The events are split into chunks of 65536 events by their upper 16 bits,
+ * and only the chunks holding events are stored, each in the smaller of two
+ * containers: a sorted array of the lower 16 bits of up to 4096 events, or a
+ * bitmap of 1024 longs. A set therefore takes at most two bytes per event
+ * and one bit per event of the chunks it spans, so a selection scales with
+ * how scattered its events are rather than with the events of the file.
+ * Union, intersection and difference work a chunk at a time without
+ * expanding the arrays, and the cardinality is kept, so it costs nothing.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and can be shared between threads; the
+ * operations return new sets sharing the containers they leave alone.
+ * </p>
+ */
+final class EventBitmap {
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int BITMAP_WORDS = (1 << CHUNK_BITS) / 64;
+    // Most events held in an array container; beyond it a bitmap is smaller
+    private static final int MAX_ARRAY_SIZE = 4096;
+
+    static final EventBitmap EMPTY = new EventBitmap(new int[0], new Object[0], new int[0]);
+
+    // Upper 16 bits of the events of every chunk, in increasing order
+    private final int[] keys;
+    // The container of every chunk, either a short[] or a long[]
+    private final Object[] containers;
+    private final int[] cardinalities;
+    private final int cardinality;
+
+    private EventBitmap(int[] keys, Object[] containers, int[] cardinalities) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinalities = cardinalities;
+        int total = 0;
+        for (int count : cardinalities) {
+            total += count;
+        }
+        this.cardinality = total;
+    }
+
+    /**
+     * Returns the set of events[from] up to, but not including, events[to],
+     * which must be in increasing order
+     */
+    static EventBitmap fromSorted(int[] events, int from, int to) {
+        Builder builder = new Builder(to - from);
+        int i = from;
+        while (i < to) {
+            int key = events[i] >>> CHUNK_BITS;
+            int end = i;
+            while ((end < to) && ((events[end] >>> CHUNK_BITS) == key)) {
+                end++;
+            }
+
+            if (end - i <= MAX_ARRAY_SIZE) {
+                short[] values = new short[end - i];
+                for (int k = i; k < end; k++) {
+                    values[k - i] = (short) events[k];
+                }
+                builder.add(key, values, values.length);
+            } else {
+                long[] words = new long[BITMAP_WORDS];
+                for (int k = i; k < end; k++) {
+                    words[(events[k] & CHUNK_MASK) >>> 6] |= 1L << events[k];
+                }
+                builder.add(key, words, end - i);
+            }
+            i = end;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the union of every set, merging each chunk once however many
+     * sets hold it
+     */
+    static EventBitmap union(EventBitmap... bitmaps) {
+        int maxKey = -1;
+        for (EventBitmap bitmap : bitmaps) {
+            if (bitmap.keys.length > 0) {
+                maxKey = Math.max(maxKey, bitmap.keys[bitmap.keys.length - 1]);
+            }
+        }
+
+        // The containers of every chunk, merged into a bitmap only if the
+        // chunk is held by more than one set
+        Object[] merged = new Object[maxKey + 1];
+        int[] counts = new int[maxKey + 1];
+        for (EventBitmap bitmap : bitmaps) {
+            for (int c = 0; c < bitmap.keys.length; c++) {
+                int key = bitmap.keys[c];
+                if (merged[key] == null) {
+                    merged[key] = bitmap.containers[c];
+                    counts[key] = bitmap.cardinalities[c];
+                    continue;
+                }
+                long[] words;
+                if ((merged[key] instanceof long[]) && (counts[key] >= 0)) {
+                    // Copy a container shared with a set before changing it
+                    words = ((long[]) merged[key]).clone();
+                } else if (merged[key] instanceof long[]) {
+                    words = (long[]) merged[key];
+                } else {
+                    words = toWords((short[]) merged[key]);
+                }
+                orInto(words, bitmap.containers[c]);
+                merged[key] = words;
+                counts[key] = -1;  // Owned by the union, counted below
+            }
+        }
+
+        Builder builder = new Builder(0);
+        for (int key = 0; key <= maxKey; key++) {
+            if (merged[key] == null) {
+                continue;
+            }
+            if (counts[key] >= 0) {
+                builder.add(key, merged[key], counts[key]);
+            } else {
+                builder.addWords(key, (long[]) merged[key]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the events in this set or in other
+     */
+    EventBitmap or(EventBitmap other) {
+        return union(this, other);
+    }
+
+    /**
+     * Returns the events in both this set and other
+     */
+    EventBitmap and(EventBitmap other) {
+        Builder builder = new Builder(0);
+        int i = 0;
+        int j = 0;
+        while ((i < keys.length) && (j < other.keys.length)) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Object a = containers[i];
+                Object b = other.containers[j];
+                if ((a instanceof long[]) && (b instanceof long[])) {
+                    long[] words = ((long[]) a).clone();
+                    long[] otherWords = (long[]) b;
+                    for (int w = 0; w < words.length; w++) {
+                        words[w] &= otherWords[w];
+                    }
+                    builder.addWords(keys[i], words);
+                } else if (a instanceof short[]) {
+                    builder.addFiltered(keys[i], (short[]) a, b, true);
+                } else {
+                    builder.addFiltered(keys[i], (short[]) b, a, true);
+                }
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the events in this set but not in other
+     */
+    EventBitmap andNot(EventBitmap other) {
+        Builder builder = new Builder(0);
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            while ((j < other.keys.length) && (other.keys[j] < keys[i])) {
+                j++;
+            }
+            if ((j == other.keys.length) || (other.keys[j] != keys[i])) {
+                builder.add(keys[i], containers[i], cardinalities[i]);
+                continue;
+            }
+
+            Object a = containers[i];
+            Object b = other.containers[j];
+            if (a instanceof short[]) {
+                builder.addFiltered(keys[i], (short[]) a, b, false);
+            } else {
+                long[] words = ((long[]) a).clone();
+                if (b instanceof long[]) {
+                    long[] otherWords = (long[]) b;
+                    for (int w = 0; w < words.length; w++) {
+                        words[w] &= ~otherWords[w];
+                    }
+                } else {
+                    for (short value : (short[]) b) {
+                        words[(value & CHUNK_MASK) >>> 6] &= ~(1L << value);
+                    }
+                }
+                builder.addWords(keys[i], words);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of events in the set
+     */
+    int getCardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    boolean contains(int event) {
+        int c = Arrays.binarySearch(keys, event >>> CHUNK_BITS);
+        if (c < 0) {
+            return false;
+        }
+        return containerContains(containers[c], event & CHUNK_MASK);
+    }
+
+    /**
+     * Returns the events in increasing order
+     */
+    int[] toArray() {
+        int[] events = new int[cardinality];
+        Events iterator = iterator();
+        for (int k = 0; k < events.length; k++) {
+            events[k] = iterator.next();
+        }
+        return events;
+    }
+
+    /**
+     * Returns the events in increasing order, without boxing them
+     */
+    Events iterator() {
+        return new Events();
+    }
+
+    /**
+     * Events ---
+     * <p>
+     * Iterates over the events of a set in increasing order.
+     * </p>
+     */
+    final class Events {
+
+        private int chunk = -1;
+        private int position = 0;
+        private long word = 0;
+        private int remaining = cardinality;
+
+        private Events() {
+        }
+
+        boolean hasNext() {
+            return remaining > 0;
+        }
+
+        int next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+
+            while ((chunk < 0) || !hasNextInChunk()) {
+                chunk++;
+                position = 0;
+                word = (containers[chunk] instanceof long[]) ? ((long[]) containers[chunk])[0] : 0;
+            }
+
+            int high = keys[chunk] << CHUNK_BITS;
+            Object container = containers[chunk];
+            if (container instanceof short[]) {
+                return high | (((short[]) container)[position++] & CHUNK_MASK);
+            }
+            long[] words = (long[]) container;
+            while (word == 0) {
+                word = words[++position];
+            }
+            int bit = Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+            return high | (position << 6) | bit;
+        }
+
+        private boolean hasNextInChunk() {
+            Object container = containers[chunk];
+            if (container instanceof short[]) {
+                return position < ((short[]) container).length;
+            }
+            long[] words = (long[]) container;
+            if (word != 0) {
+                return true;
+            }
+            for (int w = position + 1; w < words.length; w++) {
+                if (words[w] != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Adds the containers of the set to columns, for measuring its memory
+     */
+    void collectColumns(Set<Object> columns) {
+        columns.addAll(Arrays.asList(containers));
+    }
+
+    private static boolean containerContains(Object container, int low) {
+        if (container instanceof long[]) {
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+
+        // The arrays hold the lower 16 bits, so compare them unsigned
+        short[] values = (short[]) container;
+        int from = 0;
+        int to = values.length - 1;
+        while (from <= to) {
+            int middle = (from + to) >>> 1;
+            int value = values[middle] & CHUNK_MASK;
+            if (value < low) {
+                from = middle + 1;
+            } else if (value > low) {
+                to = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long[] toWords(short[] values) {
+        long[] words = new long[BITMAP_WORDS];
+        orInto(words, values);
+        return words;
+    }
+
+    private static void orInto(long[] words, Object container) {
+        if (container instanceof long[]) {
+            long[] otherWords = (long[]) container;
+            for (int w = 0; w < words.length; w++) {
+                words[w] |= otherWords[w];
+            }
+        } else {
+            for (short value : (short[]) container) {
+                words[(value & CHUNK_MASK) >>> 6] |= 1L << value;
+            }
+        }
+    }
+
+    /**
+     * Builder ---
+     * <p>
+     * Collects chunks in increasing order of their keys, dropping empty ones
+     * and storing each in its smaller container.
+     * </p>
+     */
+    private static final class Builder {
+
+        private int[] keys;
+        private Object[] containers;
+        private int[] cardinalities;
+        private int size = 0;
+
+        Builder(int expectedEvents) {
+            int chunks = Math.max(4, expectedEvents / MAX_ARRAY_SIZE + 1);
+            keys = new int[chunks];
+            containers = new Object[chunks];
+            cardinalities = new int[chunks];
+        }
+
+        void add(int key, Object container, int count) {
+            if (count == 0) {
+                return;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                containers = Arrays.copyOf(containers, 2 * size);
+                cardinalities = Arrays.copyOf(cardinalities, 2 * size);
+            }
+            keys[size] = key;
+            containers[size] = container;
+            cardinalities[size] = count;
+            size++;
+        }
+
+        /**
+         * Adds a bitmap the builder owns, turning it into an array if that
+         * is smaller
+         */
+        void addWords(int key, long[] words) {
+            int count = 0;
+            for (long word : words) {
+                count += Long.bitCount(word);
+            }
+            if (count > MAX_ARRAY_SIZE) {
+                add(key, words, count);
+                return;
+            }
+
+            short[] values = new short[count];
+            int k = 0;
+            for (int w = 0; w < words.length; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    values[k++] = (short) ((w << 6) | Long.numberOfTrailingZeros(word));
+                }
+            }
+            add(key, values, count);
+        }
+
+        /**
+         * Adds the values of an array kept, if keep is true, or dropped if
+         * they are in the other container
+         */
+        void addFiltered(int key, short[] values, Object other, boolean keep) {
+            short[] filtered = new short[values.length];
+            int count = 0;
+            for (short value : values) {
+                if (containerContains(other, value & CHUNK_MASK) == keep) {
+                    filtered[count++] = value;
+                }
+            }
+            add(key, (count == values.length) ? values : Arrays.copyOf(filtered, count), count);
+        }
+
+        EventBitmap build() {
+            return new EventBitmap(
+                    Arrays.copyOf(keys, size),
+                    Arrays.copyOf(containers, size),
+                    Arrays.copyOf(cardinalities, size));
+        }
+    }
+}
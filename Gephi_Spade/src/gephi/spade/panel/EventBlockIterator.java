@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * EventBlockIterator ---
+ * <p>
+ * Iterates over the events of an FCS file in blocks of a fixed number of
+ * events, decoded straight from the mapped DATA segment.
+ * </p>
+ *
+ * <p>
+ * Each block is a fresh array of double arrays laid out like
+ * <code>fcsFile.getEventList()</code>, i.e. block[parameter][event]. The last
+ * block may hold fewer events than the block size. Since only the current
+ * block is referenced, peak memory is bounded by the block size rather than
+ * by the size of the file.
+ * </p>
+ */
+public final class EventBlockIterator implements Iterator<double[][]> {
+
+    private final fcsFile file;
+    /**
+     * The mapped DATA segment, or null if there are no events to read
+     */
+    private final ByteBuffer data;
+    private final int blockSize;
+    private final boolean compensate;
+    private final int totalEvents;
+    private int nextEvent = 0;
+    private int blockStart = 0;
+
+    EventBlockIterator(fcsFile file, ByteBuffer data, int blockSize, boolean compensate) {
+        this.file = file;
+        this.data = data;
+        this.blockSize = blockSize;
+        this.compensate = compensate;
+        this.totalEvents = (data == null) ? 0 : file.getEventCount();
+    }
+
+    public boolean hasNext() {
+        return nextEvent < totalEvents;
+    }
+
+    public double[][] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        int count = Math.min(blockSize, totalEvents - nextEvent);
+        double[][] block = new double[file.getNumChannels()][count];
+
+        file.decodeEvents(data, nextEvent, count, block, 0);
+        if (compensate) {
+            file.compensateBlock(block);
+        }
+
+        blockStart = nextEvent;
+        nextEvent += count;
+        return block;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Events are read only");
+    }
+
+    /**
+     * getBlockStart ---
+     * <p>
+     * Returns the index in the file of the first event of the block last
+     * returned by next().
+     * </p>
+     *
+     * @return int index of the first event of the current block.
+     */
+    public int getBlockStart() {
+        return blockStart;
+    }
+
+    /**
+     * getBlockSize ---
+     * <p>
+     * Returns the maximum number of events in each block.
+     * </p>
+     *
+     * @return int maximum number of events in each block.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * getEventCount ---
+     * <p>
+     * Returns the total number of events the iterator walks over.
+     * </p>
+     *
+     * @return int total number of events.
+     */
+    public int getEventCount() {
+        return totalEvents;
+    }
+}
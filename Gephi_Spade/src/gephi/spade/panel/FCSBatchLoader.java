@@ -0,0 +1,323 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FCSBatchLoader ---
+ * <p>
+ * Loads the compensated events of many FCS files at once, e.g. every file of
+ * an analysis, on a fixed number of threads.
+ * </p>
+ *
+ * <p>
+ * Each file is admitted against a memory budget before it is decoded. Its
+ * size is estimated from the TEXT segment as channels times events times the
+ * width of the elements, plus the cluster index, since the events are loaded
+ * and compensated in place like FCSLoader does. A file waits until the files
+ * being loaded leave enough of the budget, so large files queue rather than
+ * run out of memory together. A file that is larger than the whole budget is
+ * loaded on its own.
+ * </p>
+ *
+ * <p>
+ * Results are handed out as the files finish, in whatever order that is, so
+ * work on the first files can start while the rest load. The decoding threads
+ * of each file are the available processors shared between the loading
+ * threads.
+ * </p>
+ */
+public final class FCSBatchLoader {
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final long memoryBudget;
+    // The batches that may still have files loading, so shutdown() can
+    // cancel them; a batch nobody holds on to can no longer be taken from
+    private final Set<Batch> batches = Collections.newSetFromMap(new WeakHashMap<Batch, Boolean>());
+    private long admittedBytes = 0;
+    private int admittedFiles = 0;
+
+    /**
+     * Result ---
+     * <p>
+     * The outcome of loading one file of a batch.
+     * </p>
+     */
+    public static final class Result {
+
+        private final File file;
+        private final FCSOperations dataset;
+        private final IOException exception;
+
+        private Result(File file, FCSOperations dataset, IOException exception) {
+            this.file = file;
+            this.dataset = dataset;
+            this.exception = exception;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isLoaded() {
+            return dataset != null;
+        }
+
+        /**
+         * Returns the loaded dataset, or throws the exception that stopped
+         * the file from loading
+         */
+        public FCSOperations getDataset() throws IOException {
+            if (dataset == null) {
+                throw exception;
+            }
+            return dataset;
+        }
+    }
+
+    /**
+     * Batch ---
+     * <p>
+     * The files of one call to load(), handing out their results as they
+     * finish.
+     * </p>
+     */
+    public final class Batch {
+
+        private final CompletionService<Result> results;
+        // The file of each task, to report the files that were cancelled
+        private final Map<Future<Result>, File> files;
+        private int remaining;
+
+        private Batch(CompletionService<Result> results, Map<Future<Result>, File> files) {
+            this.results = results;
+            this.files = files;
+            this.remaining = files.size();
+        }
+
+        /**
+         * Waits for the next file to finish and returns its result, or null
+         * once every result was handed out
+         */
+        public synchronized Result take() throws InterruptedException {
+            if (remaining == 0) {
+                return null;
+            }
+            Result result = getResult(results.take());
+            remaining--;
+            return result;
+        }
+
+        /**
+         * Returns the result of the next file to finish within timeout, or
+         * null if none does or every result was handed out
+         */
+        public synchronized Result poll(long timeout, TimeUnit unit) throws InterruptedException {
+            if (remaining == 0) {
+                return null;
+            }
+            Future<Result> future = results.poll(timeout, unit);
+            if (future == null) {
+                return null;
+            }
+            remaining--;
+            return getResult(future);
+        }
+
+        /**
+         * Returns the number of results not handed out yet
+         */
+        public synchronized int getRemainingCount() {
+            return remaining;
+        }
+
+        /**
+         * Stops loading the files of the batch. Files that are stopped
+         * still hand out a result, which throws.
+         */
+        public void cancel() {
+            for (Future<Result> future : files.keySet()) {
+                future.cancel(true);
+            }
+        }
+
+        private Result getResult(Future<Result> future) throws InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw (RuntimeException) cause;
+            } catch (CancellationException ce) {
+                File file = files.get(future);
+                return new Result(file, null, new InterruptedIOException("Loading cancelled: " + file));
+            }
+        }
+    }
+
+    /**
+     * Creates a loader with up to parallelism files loading at once and
+     * memoryBudget bytes of events admitted at once
+     */
+    public FCSBatchLoader(int parallelism, long memoryBudget) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.memoryBudget = memoryBudget;
+        this.executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Creates a loader with a thread per processor and half the maximum heap
+     * as its budget
+     */
+    public FCSBatchLoader() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * Starts loading the compensated events of files, storageMode being
+     * fcsFile.STORAGE_DOUBLE or fcsFile.STORAGE_FLOAT
+     */
+    public Batch load(List<File> files, final int storageMode) {
+        CompletionService<Result> results = new ExecutorCompletionService<Result>(executor);
+        Map<Future<Result>, File> futures = new IdentityHashMap<Future<Result>, File>();
+
+        synchronized (batches) {
+            for (final File file : files) {
+                futures.put(results.submit(new Callable<Result>() {
+                    public Result call() {
+                        return loadFile(file, storageMode);
+                    }
+                }), file);
+            }
+            Batch batch = new Batch(results, futures);
+            batches.add(batch);
+            return batch;
+        }
+    }
+
+    /**
+     * Stops the loading threads, cancelling every file not loaded yet. The
+     * batches still hand out a result for every file, which throws for the
+     * files that were cancelled.
+     */
+    public void shutdown() {
+        synchronized (batches) {
+            List<Runnable> neverStarted = executor.shutdownNow();
+            for (Batch batch : batches) {
+                batch.cancel();
+            }
+            batches.clear();
+
+            // The completion service only queues a file's future once the
+            // task wrapping it is done, and the tasks that never started
+            // never will be unless they are cancelled too
+            for (Runnable task : neverStarted) {
+                if (task instanceof Future) {
+                    ((Future<?>) task).cancel(false);
+                }
+            }
+        }
+    }
+
+    private Result loadFile(File file, int storageMode) {
+        try {
+            fcsFile fcs = new fcsFile(file, false, storageMode);
+            if (!fcs.isFCS()) {
+                return new Result(file, null, new IOException("Not an FCS file: " + file));
+            }
+
+            long bytes = estimateBytes(fcs);
+            admit(bytes);
+            try {
+                fcs.setDecodeParallelism(Math.max(1, Runtime.getRuntime().availableProcessors() / parallelism));
+
+                // Run the loader on this thread rather than a SwingWorker's
+                FCSLoader loader = new FCSLoader(fcs);
+                loader.run();
+                return new Result(file, loader.get(), null);
+            } finally {
+                release(bytes);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return new Result(file, null, new InterruptedIOException("Interrupted while loading " + file));
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                return new Result(file, null, (IOException) cause);
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            return new Result(file, null, new IOException(cause));
+        } catch (IOException ioe) {
+            return new Result(file, null, ioe);
+        }
+    }
+
+    /**
+     * Estimates the bytes taken by the loaded events of a file from its TEXT
+     * segment
+     */
+    static long estimateBytes(fcsFile fcs) {
+        long width = (fcs.getStorageMode() == fcsFile.STORAGE_FLOAT) ? 4 : 8;
+        long events = fcs.getEventCount();
+
+        // Every event is indexed under its cluster as an int
+        return (fcs.getNumChannels() * width + 4) * events;
+    }
+
+    /**
+     * Waits until the files being loaded leave bytes of the budget, or until
+     * no file is being loaded
+     */
+    private synchronized void admit(long bytes) throws InterruptedException {
+        while ((admittedFiles > 0) && (admittedBytes + bytes > memoryBudget)) {
+            wait();
+        }
+        admittedBytes += bytes;
+        admittedFiles++;
+    }
+
+    private synchronized void release(long bytes) {
+        admittedBytes -= bytes;
+        admittedFiles--;
+        notifyAll();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FCSCatalog ---
+ * <p>
+ * A persistent catalog of the TEXT segment metadata of FCS files: channel
+ * names, $TOT, $PAR, cytometer and spill string.
+ * </p>
+ *
+ * <p>
+ * Entries are keyed on the absolute path of a file and are only valid for
+ * the size and modification time the file had when it was read. A stale or
+ * missing entry is refreshed by parsing just the TEXT segment of the file,
+ * so listing a directory of FCS files is a catalog lookup for every file
+ * that has not changed. Files that are not FCS files are cataloged too, so
+ * they are not opened again either.
+ * </p>
+ *
+ * <p>
+ * The catalog is only written back by save(), and only if an entry changed.
+ * A catalog file that cannot be read is treated as empty and rebuilt.
+ * </p>
+ */
+public final class FCSCatalog {
+
+    public static final String DEFAULT_CATALOG_NAME = ".fcscatalog";
+    private static final int CATALOG_MAGIC = 0x46435343;
+    private static final int CATALOG_VERSION = 1;
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final File catalogFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private boolean modified = false;
+
+    /**
+     * Entry ---
+     * <p>
+     * The metadata of one file as of its size and modification time.
+     * </p>
+     */
+    public static final class Entry {
+
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final boolean fcs;
+        private final String version;
+        private final int parameters;
+        private final int totalEvents;
+        private final String cytometer;
+        private final String spillString;
+        private final String[] channelShortnames;
+        private final String[] channelNames;
+
+        private Entry(File file, long length, long lastModified, boolean fcs, String version,
+                int parameters, int totalEvents, String cytometer, String spillString,
+                String[] channelShortnames, String[] channelNames) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.fcs = fcs;
+            this.version = version;
+            this.parameters = parameters;
+            this.totalEvents = totalEvents;
+            this.cytometer = cytometer;
+            this.spillString = spillString;
+            this.channelShortnames = channelShortnames;
+            this.channelNames = channelNames;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isFCS() {
+            return fcs;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public int getNumChannels() {
+            return parameters;
+        }
+
+        public int getEventCount() {
+            return totalEvents;
+        }
+
+        public String getCytometer() {
+            return cytometer;
+        }
+
+        public String getSpillString() {
+            return spillString;
+        }
+
+        public String getChannelShortName(int channelNumber) {
+            return channelShortnames[channelNumber];
+        }
+
+        public String getChannelName(int channelNumber) {
+            return channelNames[channelNumber];
+        }
+
+        public String[] getChannelShortNames() {
+            return channelShortnames.clone();
+        }
+
+        public String[] getChannelNames() {
+            return channelNames.clone();
+        }
+
+        /**
+         * Returns whether the entry still describes the file as it is on disk
+         */
+        boolean isCurrent() {
+            return (file.length() == length) && (file.lastModified() == lastModified);
+        }
+
+        @Override
+        public String toString() {
+            return file.getName();
+        }
+    }
+
+    /**
+     * Opens the catalog stored in catalogFile, or an empty catalog if the
+     * file does not exist yet or cannot be read
+     */
+    public FCSCatalog(File catalogFile) {
+        this.catalogFile = catalogFile;
+
+        if (catalogFile.isFile()) {
+            try {
+                load();
+            } catch (IOException ex) {
+                // The catalog is only a cache, so start over
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the catalog file kept in a directory of FCS files
+     */
+    public static File getDefaultCatalogFile(File directory) {
+        return new File(directory, DEFAULT_CATALOG_NAME);
+    }
+
+    /**
+     * Returns the entry of a file, reading its TEXT segment first if the
+     * file is not cataloged or has changed since it was
+     */
+    public synchronized Entry get(File file) throws FileNotFoundException, IOException {
+        String key = file.getAbsolutePath();
+        Entry entry = entries.get(key);
+
+        if ((entry == null) || !entry.isCurrent()) {
+            entry = read(file.getAbsoluteFile());
+            entries.put(key, entry);
+            modified = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Brings the entries of every file in a directory up to date, drops the
+     * entries of files that are gone, and returns the entries of the FCS
+     * files ordered by path
+     */
+    public synchronized List<Entry> refresh(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new FileNotFoundException("Not a directory: " + directory);
+        }
+        Arrays.sort(files);
+
+        // Drop the entries of files that were removed from the directory
+        File parent = directory.getAbsoluteFile();
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            File file = i.next().getFile();
+            if (parent.equals(file.getParentFile()) && !file.isFile()) {
+                i.remove();
+                modified = true;
+            }
+        }
+
+        List<Entry> fcsEntries = new ArrayList<Entry>();
+        for (File file : files) {
+            if (!file.isFile() || isSidecar(file)) {
+                continue;
+            }
+            Entry entry;
+            try {
+                entry = get(file);
+            } catch (IOException ex) {
+                entry = putUnreadable(file);
+            } catch (RuntimeException ex) {
+                // A truncated or corrupt TEXT segment, e.g. of a file that
+                // is still being copied
+                entry = putUnreadable(file);
+            }
+            if (entry.isFCS()) {
+                fcsEntries.add(entry);
+            }
+        }
+        return fcsEntries;
+    }
+
+    /**
+     * Catalogs a file that could not be read as not an FCS file, as of its
+     * current size and modification time, so it is read again once it
+     * changes
+     */
+    /**
+     * Returns whether a file is the catalog, a column cache or a half written
+     * temporary file of either, none of which are worth cataloging
+     */
+    private boolean isSidecar(File file) {
+        String name = file.getName();
+        return name.equals(catalogFile.getName())
+                || name.endsWith(fcsFile.COLUMN_CACHE_EXTENSION)
+                || name.endsWith(TEMP_EXTENSION);
+    }
+
+    private Entry putUnreadable(File file) {
+        File absoluteFile = file.getAbsoluteFile();
+        Entry entry = newNonFCSEntry(absoluteFile, absoluteFile.length(), absoluteFile.lastModified());
+        entries.put(file.getAbsolutePath(), entry);
+        modified = true;
+        return entry;
+    }
+
+    private static Entry newNonFCSEntry(File file, long length, long lastModified) {
+        return new Entry(file, length, lastModified, false, null, 0, 0, null, null,
+                new String[0], new String[0]);
+    }
+
+    /**
+     * Writes the catalog back to its file if any entry changed. The catalog
+     * is written to a temporary file first and renamed into place.
+     */
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+
+        File tempFile = new File(catalogFile.getPath() + TEMP_EXTENSION);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+        try {
+            out.writeInt(CATALOG_MAGIC);
+            out.writeInt(CATALOG_VERSION);
+            out.writeInt(entries.size());
+
+            for (Entry entry : entries.values()) {
+                writeString(out, entry.file.getPath());
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeBoolean(entry.fcs);
+
+                if (entry.fcs) {
+                    writeString(out, entry.version);
+                    out.writeInt(entry.parameters);
+                    out.writeInt(entry.totalEvents);
+                    writeString(out, entry.cytometer);
+                    writeString(out, entry.spillString);
+                    for (int i = 0; i < entry.parameters; i++) {
+                        writeString(out, entry.channelShortnames[i]);
+                        writeString(out, entry.channelNames[i]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(catalogFile)) {
+            // Windows will not rename over an existing file
+            catalogFile.delete();
+            if (!tempFile.renameTo(catalogFile)) {
+                tempFile.delete();
+                throw new IOException("Unable to write catalog " + catalogFile);
+            }
+        }
+        modified = false;
+    }
+
+    /**
+     * Reads the entry of a file from its TEXT segment only
+     */
+    private static Entry read(File file) throws FileNotFoundException, IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        fcsFile fcs = new fcsFile(file, false);
+
+        if (!fcs.isFCS()) {
+            return newNonFCSEntry(file, length, lastModified);
+        }
+
+        int parameters = fcs.getNumChannels();
+        String[] channelShortnames = new String[parameters];
+        String[] channelNames = new String[parameters];
+        for (int i = 0; i < parameters; i++) {
+            channelShortnames[i] = fcs.getChannelShortName(i);
+            channelNames[i] = fcs.getChannelName(i);
+        }
+
+        return new Entry(file, length, lastModified, true, fcs.getVersion(), parameters,
+                fcs.getEventCount(), fcs.getCytometer(), fcs.getSpillString(),
+                channelShortnames, channelNames);
+    }
+
+    /**
+     * Reads the catalog, checking every count against the size of the file,
+     * so a corrupt catalog throws an IOException rather than allocating
+     * whatever it claims
+     */
+    private void load() throws IOException {
+        // No string can be longer than the catalog, and every entry takes at
+        // least the length of its path, its size, modification time and flag
+        long limit = catalogFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+
+        try {
+            if ((in.readInt() != CATALOG_MAGIC) || (in.readInt() != CATALOG_VERSION)) {
+                throw new IOException("Not a catalog: " + catalogFile);
+            }
+
+            int count = checkCount(in.readInt(), limit / 21, "entries");
+            for (int n = 0; n < count; n++) {
+                File file = new File(readString(in, limit));
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                Entry entry;
+
+                if (in.readBoolean()) {
+                    String version = readString(in, limit);
+                    int parameters = checkCount(in.readInt(), limit / 8, "parameters");
+                    int totalEvents = checkCount(in.readInt(), Integer.MAX_VALUE, "events");
+                    String cytometer = readString(in, limit);
+                    String spillString = readString(in, limit);
+                    String[] channelShortnames = new String[parameters];
+                    String[] channelNames = new String[parameters];
+                    for (int i = 0; i < parameters; i++) {
+                        channelShortnames[i] = readString(in, limit);
+                        channelNames[i] = readString(in, limit);
+                    }
+                    entry = new Entry(file, length, lastModified, true, version, parameters,
+                            totalEvents, cytometer, spillString, channelShortnames, channelNames);
+                } else {
+                    entry = newNonFCSEntry(file, length, lastModified);
+                }
+                entries.put(file.getPath(), entry);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Strings are written as a length and UTF-8 bytes, with -1 for null,
+     * since spill strings can outgrow writeUTF
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        checkCount(length, limit, "bytes");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int checkCount(int count, long max, String what) throws IOException {
+        if ((count < 0) || (count > max)) {
+            throw new IOException("Corrupt catalog: " + count + " " + what);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FCSDatasetCache ---
+ * <p>
+ * Keeps recently used FCSOperations, so switching back to a sample that was
+ * viewed recently does not decode and compensate its file again.
+ * </p>
+ *
+ * <p>
+ * Datasets are keyed on the canonical path of the file and the storage mode,
+ * and are only valid for the size and modification time the file had when
+ * it was loaded. Each dataset is sized by the columns it holds, channels
+ * times events times the width of the elements, split between the heap and
+ * the columns mapped from a column cache. Each part has its own budget, and
+ * the least recently used datasets are dropped until both are met. A
+ * dataset that does not fit the budgets on its own is handed out but not
+ * kept.
+ * </p>
+ *
+ * <p>
+ * Since fcsFile caches channels as they are viewed, a dataset can grow while
+ * it is cached; it is measured again every time it is handed out.
+ * </p>
+ */
+public final class FCSDatasetCache {
+
+    /**
+     * A quarter of the maximum heap
+     */
+    public static final long DEFAULT_HEAP_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+    /**
+     * 1 GB of mapped columns
+     */
+    public static final long DEFAULT_MAPPED_BUDGET = 1L << 30;
+
+    private static final FCSDatasetCache shared = new FCSDatasetCache(DEFAULT_HEAP_BUDGET, DEFAULT_MAPPED_BUDGET);
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long heapBudget;
+    private long mappedBudget;
+    private long heapBytes = 0;
+    private long mappedBytes = 0;
+
+    private static final class Entry {
+
+        final FCSOperations dataset;
+        final long length;
+        final long lastModified;
+        long heapBytes;
+        long mappedBytes;
+
+        Entry(FCSOperations dataset, long length, long lastModified) {
+            this.dataset = dataset;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        boolean isCurrent(File file) {
+            return (file.length() == length) && (file.lastModified() == lastModified);
+        }
+    }
+
+    /**
+     * Creates an empty cache with the given budgets in bytes
+     */
+    public FCSDatasetCache(long heapBudget, long mappedBudget) {
+        setBudgets(heapBudget, mappedBudget);
+    }
+
+    /**
+     * Returns the cache shared by the whole module
+     */
+    public static FCSDatasetCache getShared() {
+        return shared;
+    }
+
+    private static String getKey(File file, int storageMode) throws IOException {
+        return storageMode + ":" + file.getCanonicalPath();
+    }
+
+    /**
+     * Returns the dataset of a file, loading its compensated events with
+     * FCSOperations(File, int) if it is not cached or the file changed since
+     * it was. The file is loaded without holding the cache, so other files
+     * can be looked up meanwhile.
+     */
+    public FCSOperations get(File file, int storageMode) throws FileNotFoundException, IOException {
+        FCSOperations dataset = getIfPresent(file, storageMode);
+        if (dataset != null) {
+            return dataset;
+        }
+
+        long length = file.length();
+        long lastModified = file.lastModified();
+        dataset = new FCSOperations(file, storageMode);
+        return put(file, storageMode, dataset, length, lastModified);
+    }
+
+    /**
+     * Returns the cached dataset of a file, or null if it is not cached or
+     * the file changed since it was
+     */
+    public synchronized FCSOperations getIfPresent(File file, int storageMode) throws IOException {
+        String key = getKey(file, storageMode);
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isCurrent(file)) {
+            remove(key);
+            return null;
+        }
+
+        // Channels decoded since the last lookup count against the budget
+        measure(entry);
+        trim(entry);
+        return entry.dataset;
+    }
+
+    /**
+     * Caches a dataset loaded elsewhere, e.g. by an FCSLoader, and returns
+     * the dataset cached for the file, which is an earlier one if another
+     * thread cached the file first
+     */
+    public FCSOperations put(File file, int storageMode, FCSOperations dataset) throws IOException {
+        return put(file, storageMode, dataset, file.length(), file.lastModified());
+    }
+
+    private synchronized FCSOperations put(File file, int storageMode, FCSOperations dataset,
+            long length, long lastModified) throws IOException {
+        String key = getKey(file, storageMode);
+        Entry entry = entries.get(key);
+
+        if ((entry != null) && (entry.length == length) && (entry.lastModified == lastModified)) {
+            return entry.dataset;
+        }
+        if (entry != null) {
+            remove(key);
+        }
+
+        entry = new Entry(dataset, length, lastModified);
+        entries.put(key, entry);
+        measure(entry);
+        trim(entry);
+        return dataset;
+    }
+
+    /**
+     * Drops every dataset of a file
+     */
+    public synchronized void remove(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, Entry> mapping = i.next();
+            if (mapping.getKey().substring(mapping.getKey().indexOf(':') + 1).equals(path)) {
+                heapBytes -= mapping.getValue().heapBytes;
+                mappedBytes -= mapping.getValue().mappedBytes;
+                i.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            heapBytes -= entry.heapBytes;
+            mappedBytes -= entry.mappedBytes;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        heapBytes = 0;
+        mappedBytes = 0;
+    }
+
+    private void measure(Entry entry) {
+        long[] memoryUsage = entry.dataset.getMemoryUsage();
+        heapBytes += memoryUsage[0] - entry.heapBytes;
+        mappedBytes += memoryUsage[1] - entry.mappedBytes;
+        entry.heapBytes = memoryUsage[0];
+        entry.mappedBytes = memoryUsage[1];
+    }
+
+    /**
+     * Drops the least recently used datasets until the budgets are met,
+     * keeping current unless it does not fit on its own
+     */
+    private void trim(Entry current) {
+        Iterator<Entry> i = entries.values().iterator();
+        while (((heapBytes > heapBudget) || (mappedBytes > mappedBudget)) && i.hasNext()) {
+            Entry entry = i.next();
+            if ((entry == current) && (entries.size() > 1)) {
+                continue;
+            }
+            heapBytes -= entry.heapBytes;
+            mappedBytes -= entry.mappedBytes;
+            i.remove();
+        }
+    }
+
+    /**
+     * Sets the budgets in bytes, dropping datasets if they are no longer met
+     */
+    public synchronized void setBudgets(long heapBudget, long mappedBudget) {
+        if ((heapBudget < 0) || (mappedBudget < 0)) {
+            throw new IllegalArgumentException("Budgets must not be negative: " + heapBudget + ", " + mappedBudget);
+        }
+        this.heapBudget = heapBudget;
+        this.mappedBudget = mappedBudget;
+        trim(null);
+    }
+
+    public synchronized long getHeapBudget() {
+        return heapBudget;
+    }
+
+    public synchronized long getMappedBudget() {
+        return mappedBudget;
+    }
+
+    /**
+     * Returns the bytes of heap taken by the cached datasets as of when they
+     * were last measured
+     */
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * Returns the bytes of mapped columns taken by the cached datasets as of
+     * when they were last measured
+     */
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Returns the number of cached datasets
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
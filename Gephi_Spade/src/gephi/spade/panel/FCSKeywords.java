@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * FCSKeywords ---
+ * <p>
+ * The keyword/value pairs of a TEXT segment, indexed in a single pass over
+ * its bytes.
+ * </p>
+ *
+ * <p>
+ * The first byte of the segment is the delimiter. A doubled delimiter inside
+ * a keyword or value stands for the delimiter itself, which is possible since
+ * the FCS specification does not allow empty keywords or values. The scan
+ * only records where each keyword and value starts and ends; the keywords
+ * are decoded to build the index, while a value is decoded the first time it
+ * is asked for. Keywords and values are trimmed, and a later pair replaces
+ * an earlier one with the same keyword.
+ * </p>
+ *
+ * <p>
+ * The bytes are ISO-8859-1, so every byte maps straight to a char.
+ * </p>
+ */
+final class FCSKeywords {
+
+    private final byte[] text;
+    private final byte delimiter;
+    /**
+     * Byte range [start, end) of each keyword and value in text, keyword of
+     * pair i at 2 * i and its value at 2 * i + 1
+     */
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int numTokens = 0;
+    /**
+     * Index of the value of each keyword in starts/ends
+     */
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+    private String[] values;
+    private Properties properties = null;
+
+    /**
+     * Indexes the keyword/value pairs of the TEXT segment held in text,
+     * whose first byte is the delimiter
+     */
+    FCSKeywords(byte[] text) {
+        this.text = text;
+        this.delimiter = (text.length > 0) ? text[0] : (byte) '\\';
+
+        scan();
+
+        values = new String[numTokens];
+        for (int i = 0; i + 1 < numTokens; i += 2) {
+            index.put(decode(i), Integer.valueOf(i + 1));
+        }
+    }
+
+    /**
+     * Splits the segment into keywords and values at every single delimiter
+     */
+    private void scan() {
+        final byte[] text = this.text;
+        final byte delimiter = this.delimiter;
+        final int length = text.length;
+        int pos = 1;
+
+        while (pos < length) {
+            int start = pos;
+
+            while (pos < length) {
+                if (text[pos] == delimiter) {
+                    if ((pos + 1 < length) && (text[pos + 1] == delimiter)) {
+                        // An escaped delimiter, so skip both
+                        pos += 2;
+                        continue;
+                    }
+                    break;
+                }
+                pos++;
+            }
+
+            if (numTokens == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * numTokens);
+                ends = Arrays.copyOf(ends, 2 * numTokens);
+            }
+            starts[numTokens] = start;
+            ends[numTokens] = pos;
+            numTokens++;
+
+            // Skip the delimiter ending the token
+            pos++;
+        }
+    }
+
+    /**
+     * Decodes a keyword or value, unescaping doubled delimiters and trimming
+     * it
+     */
+    private String decode(int token) {
+        int start = starts[token];
+        int end = ends[token];
+
+        // Trim the same characters String.trim() does
+        while ((start < end) && ((text[start] & 0xFF) <= ' ')) {
+            start++;
+        }
+        while ((end > start) && ((text[end - 1] & 0xFF) <= ' ')) {
+            end--;
+        }
+
+        char[] chars = new char[end - start];
+        int length = 0;
+
+        for (int pos = start; pos < end; pos++) {
+            chars[length++] = (char) (text[pos] & 0xFF);
+            if (text[pos] == delimiter) {
+                // Drop the second delimiter of the escape
+                pos++;
+            }
+        }
+
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Returns the value of a keyword, or null if the segment does not have
+     * the keyword
+     */
+    synchronized String getProperty(String keyword) {
+        Integer token = index.get(keyword);
+        if (token == null) {
+            return null;
+        }
+
+        int i = token.intValue();
+        if (values[i] == null) {
+            values[i] = decode(i);
+        }
+        return values[i];
+    }
+
+    /**
+     * Returns the number of distinct keywords
+     */
+    int size() {
+        return index.size();
+    }
+
+    boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    char getDelimiter() {
+        return (char) (delimiter & 0xFF);
+    }
+
+    /**
+     * Returns all the pairs as a <code>Properties</code> object, which is
+     * built on first use
+     */
+    synchronized Properties toProperties() {
+        if (properties == null) {
+            properties = new Properties();
+            for (String keyword : index.keySet()) {
+                properties.setProperty(keyword, getProperty(keyword));
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import javax.swing.SwingWorker;
+
+/**
+ * FCSLoader ---
+ * <p>
+ * Loads the compensated events of an FCS file into an FCSOperations on a
+ * background thread, so opening a large file does not block the event
+ * dispatch thread.
+ * </p>
+ *
+ * <p>
+ * Loading goes through four stages: reading the TEXT segment, decoding the
+ * events, compensating the spill channels and indexing and summing the events of
+ * every cluster. The "stage" property changes when a stage starts and the
+ * "stageProgress" property is the percentage of the current stage done; the
+ * two are fired in order on the event dispatch thread. The "progress"
+ * property is the percentage of the whole loading done, counting each stage
+ * as a quarter; SwingWorker coalesces it, so it may lag behind the stage.
+ * get() returns the loaded FCSOperations, and cancel() stops the loading
+ * between ranges of events.
+ * </p>
+ *
+ * <p>
+ * Events are decoded and compensated a range at a time, and the events done
+ * so far can be read with getPartialEvents() while the rest load, e.g. for a
+ * preview plot. A channel that is not compensated is available as soon as it
+ * is decoded, while a spill channel is only available once it is compensated.
+ * </p>
+ */
+public class FCSLoader extends SwingWorker<FCSOperations, Void> {
+
+    public static final int STAGE_TEXT = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_COMPENSATE = 2;
+    public static final int STAGE_INDEX = 3;
+    private static final int NUM_STAGES = 4;
+
+    private final File file;
+    private final int storageMode;
+    private final fcsFile opened;
+
+    // -1 until the loading starts, so starting fires a change to STAGE_TEXT
+    private volatile int stage = -1;
+    private volatile int stageProgress = 0;
+    private volatile fcsFile fcs = null;
+    private volatile SpillCompensation compensation = null;
+    private volatile double[][] events = null;
+    private volatile float[][] floatEvents = null;
+    private volatile int decodedEvents = 0;
+    private volatile int compensatedEvents = 0;
+
+    /**
+     * storageMode is fcsFile.STORAGE_DOUBLE or fcsFile.STORAGE_FLOAT. The
+     * loading starts when execute() is called.
+     */
+    public FCSLoader(File file, int storageMode) {
+        this.file = file;
+        this.storageMode = storageMode;
+        this.opened = null;
+    }
+
+    /**
+     * Loads the events of a file whose TEXT segment is already read, in its
+     * storage mode and with its decoding threads
+     */
+    FCSLoader(fcsFile opened) {
+        this.file = opened.getFile();
+        this.storageMode = opened.getStorageMode();
+        this.opened = opened;
+    }
+
+    @Override
+    protected FCSOperations doInBackground() throws Exception {
+        setStage(STAGE_TEXT);
+        fcsFile fcs = (opened != null) ? opened : new fcsFile(file, false, storageMode);
+        if (!fcs.isFCS()) {
+            throw new IOException("Not an FCS file: " + file);
+        }
+        setStageProgress(100);
+
+        final int numEvents = fcs.getEventCount();
+        final int parameters = fcs.getNumChannels();
+
+        // Allocate the columns before publishing the file, so a reader that
+        // sees the file also sees them
+        if (storageMode == fcsFile.STORAGE_FLOAT) {
+            floatEvents = new float[parameters][numEvents];
+        } else {
+            events = new double[parameters][numEvents];
+        }
+        compensation = fcs.getCompensation();
+        this.fcs = fcs;
+
+        // Hand each range to every decoding thread at once
+        final int rangeSize = fcsFile.DEFAULT_BLOCK_SIZE * fcs.getDecodeParallelism();
+
+        setStage(STAGE_DECODE);
+        for (int first = 0; first < numEvents; first += rangeSize) {
+            if (isStopped()) {
+                return null;
+            }
+
+            int count = Math.min(rangeSize, numEvents - first);
+            if (!fcs.loadEvents(first, count, events, floatEvents)) {
+                throw new IOException("Unable to decode the events of " + file);
+            }
+            decodedEvents = first + count;
+            setStageProgress(percent(decodedEvents, numEvents));
+        }
+
+        setStage(STAGE_COMPENSATE);
+        if (compensation == null) {
+            compensatedEvents = numEvents;
+        }
+        for (int first = 0; (compensation != null) && (first < numEvents); first += rangeSize) {
+            if (isStopped()) {
+                return null;
+            }
+
+            int count = Math.min(rangeSize, numEvents - first);
+            if (events != null) {
+                compensation.apply(events, first, first + count, fcs.getDecodeParallelism());
+            } else {
+                compensation.apply(floatEvents, first, first + count, fcs.getDecodeParallelism());
+            }
+            compensatedEvents = first + count;
+            setStageProgress(percent(compensatedEvents, numEvents));
+        }
+
+        setStage(STAGE_INDEX);
+        ClusterIndex clusterIndex = null;
+        int clusterColumn = fcs.getChannelIdFromShortName("cluster");
+        if (clusterColumn >= 0) {
+            int[] eventClusters = new int[numEvents];
+            for (int first = 0; first < numEvents; first += rangeSize) {
+                if (isStopped()) {
+                    return null;
+                }
+
+                int last = Math.min(first + rangeSize, numEvents);
+                for (int i = first; i < last; i++) {
+                    eventClusters[i] = (int) ((events != null) ?
+                        events[clusterColumn][i] :
+                        floatEvents[clusterColumn][i]);
+                }
+                setStageProgress(percent(last, numEvents));
+            }
+            clusterIndex = new ClusterIndex(eventClusters);
+        }
+
+        FCSOperations dataset = new FCSOperations(fcs, events, floatEvents, clusterIndex);
+        if (clusterIndex != null) {
+            if (isStopped()) {
+                return null;
+            }
+            // Sum every cluster now, so the first t-test does not have to
+            dataset.getClusterStatistics();
+        }
+        setStageProgress(100);
+
+        return dataset;
+    }
+
+    /**
+     * Returns whether the loading was cancelled. Run on an executor rather
+     * than executed, the loading is stopped by interrupting its thread
+     * instead, which throws.
+     */
+    private boolean isStopped() throws InterruptedIOException {
+        if (isCancelled()) {
+            return true;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while loading " + file);
+        }
+        return false;
+    }
+
+    private void setStage(int newStage) {
+        int oldStage = stage;
+        stage = newStage;
+        firePropertyChange("stage", Integer.valueOf(oldStage), Integer.valueOf(newStage));
+        setStageProgress(0);
+    }
+
+    private void setStageProgress(int newProgress) {
+        int oldProgress = stageProgress;
+        stageProgress = newProgress;
+        firePropertyChange("stageProgress", Integer.valueOf(oldProgress), Integer.valueOf(newProgress));
+        setProgress((100 * stage + newProgress) / NUM_STAGES);
+    }
+
+    private static int percent(int done, int total) {
+        return (total == 0) ? 100 : (int) (100L * done / total);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the stage the loading is in, the last stage it reached if it
+     * is done, or -1 if it has not started
+     */
+    public int getStage() {
+        return stage;
+    }
+
+    /**
+     * Returns the percentage of the current stage done
+     */
+    public int getStageProgress() {
+        return stageProgress;
+    }
+
+    /**
+     * Returns the file once its TEXT segment is read, or null before that.
+     * Its channel names can be used to set up a preview while the events
+     * load.
+     */
+    public fcsFile getFCSFile() {
+        return fcs;
+    }
+
+    /**
+     * Returns how many of the first events of a channel are loaded, which is
+     * how many getPartialEvents() returns
+     */
+    public int getAvailableEventCount(int channel) {
+        SpillCompensation compensation = this.compensation;
+        if ((compensation != null) && compensation.isSpillChannel(channel)) {
+            return compensatedEvents;
+        }
+        return decodedEvents;
+    }
+
+    /**
+     * Returns a copy of the events of a channel loaded so far, compensated if
+     * the channel is, or an empty array before the TEXT segment is read
+     */
+    public double[] getPartialEvents(int channel) {
+        double[][] events = this.events;
+        float[][] floatEvents = this.floatEvents;
+        int count = getAvailableEventCount(channel);
+        double[] partial = new double[count];
+
+        if (events != null) {
+            System.arraycopy(events[channel], 0, partial, 0, count);
+        } else if (floatEvents != null) {
+            float[] column = floatEvents[channel];
+            for (int i = 0; i < count; i++) {
+                partial[i] = column[i];
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * Returns a copy of the events of the channel with the given short name
+     * loaded so far
+     */
+    public double[] getPartialEvents(String channel) {
+        fcsFile fcs = this.fcs;
+        int channelId = (fcs == null) ? -1 : fcs.getChannelIdFromShortName(channel);
+        if (channelId < 0) {
+            return new double[0];
+        }
+        return getPartialEvents(channelId);
+    }
+}
@@ -7,16 +7,21 @@
 package gephi.spade.panel;
 
 
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import javax.swing.JOptionPane;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.stat.descriptive.StatisticalSummary;
 import org.apache.commons.math.stat.inference.TTestImpl;
 import org.gephi.data.attributes.api.*;
 import org.gephi.graph.api.Graph;
@@ -34,23 +39,134 @@ public class FCSOperations {
     private fcsFile fcsInputFile = null;
     //private SpadeContext spadeCxt;
     private Array2DRowRealMatrix eventsInitl = null;
+    // Compensated events as one float buffer per channel, used instead of
+    // eventsInitl when the file stores its events as floats. The buffers
+    // either wrap heap arrays or are mapped from the file's column cache.
+    private FloatBuffer[] floatEventsInitl = null;
+    // Events of every cluster, indexed when the events are loaded by an
+    // FCSLoader or else the first time nodes are selected
+    private ClusterIndex clusterIndex = null;
+    // Sums of the events of every cluster and channel, used by the t-test;
+    // summed when the events are loaded by an FCSLoader or else the first
+    // time the t-test is run
+    private ClusterStatistics clusterStatistics = null;
 
     private int numNodesSelected = 0;
-    private Array2DRowRealMatrix eventsSlctd = null;
+    // Clusters of the selected nodes, distinct and in increasing order
+    private int[] selectedClusters = new int[0];
+    // Events of the selected nodes, gathered from the columns above as they
+    // are asked for
+    private EventBitmap selection = EventBitmap.EMPTY;
+    // Sums and sums of squares of the selected events of every channel,
+    // updated from clusterStatistics as clusters join or leave the
+    // selection; null until clusterStatistics is summed
+    private double[] selectedSums = null;
+    private double[] selectedSumSquares = null;
+    // Selected events of every channel gathered so far, null for the
+    // channels not asked for since the selection changed
+    private double[][] selectedColumns = new double[0][];
+    // Channels widened from floatEventsInitl for the x and y axes of the
+    // plot, least recently used first; any more would take more memory than
+    // storing the events as doubles
+    private static final int WIDENED_COLUMNS = 2;
+    private final LinkedHashMap<Integer, double[]> widenedColumns = new LinkedHashMap<Integer, double[]>(4, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+            return size() > WIDENED_COLUMNS;
+        }
+    };
 
     
     public FCSOperations(){}
     
+    /**
+     * Opens the file without decoding its events; each channel is decoded
+     * and compensated the first time it is asked for
+     */
     public FCSOperations(File inputFile) throws FileNotFoundException, IOException {
-        this(new fcsFile(inputFile, true));
-        JOptionPane.showMessageDialog(null, "line 32");
+        this(new fcsFile(inputFile, false), false);
+    }
+
+    /**
+     * storageMode is fcsFile.STORAGE_DOUBLE or fcsFile.STORAGE_FLOAT; with
+     * STORAGE_FLOAT the events take half the memory and are widened one
+     * channel at a time as they are asked for
+     */
+    public FCSOperations(File inputFile, int storageMode) throws FileNotFoundException, IOException {
+        this(new fcsFile(inputFile, true, storageMode));
+    }
+
+    /**
+     * Reads the compensated events from the column cache file, writing it
+     * first if it is missing or stale, so that reopening a file maps the
+     * events instead of decoding and compensating them again
+     */
+    public FCSOperations(File inputFile, File columnCache) throws FileNotFoundException, IOException {
+        this(openColumnCache(inputFile, columnCache));
+    }
+
+    private static fcsFile openColumnCache(File inputFile, File columnCache) throws FileNotFoundException, IOException {
+        fcsFile file = new fcsFile(inputFile, false, fcsFile.STORAGE_FLOAT);
+        file.useColumnCache(columnCache, true);
+        return file;
     }
     
     public FCSOperations(fcsFile inputFile) throws FileNotFoundException, IOException{
+        this(inputFile, true);
+    }
+
+    /**
+     * With loadEvents false the compensated events are never held in memory
+     * all at once. Single channels are decoded lazily and cached by the
+     * fcsFile, and everything else is streamed from the file in blocks, so
+     * memory is bounded by the channels viewed plus the block size.
+     */
+    public FCSOperations(fcsFile inputFile, boolean loadEvents) throws FileNotFoundException, IOException{
+        fcsInputFile = inputFile;
+        if (loadEvents && fcsInputFile.isMappedColumnsCompensated()) {
+            floatEventsInitl = fcsInputFile.getMappedColumns();
+        } else if (loadEvents && fcsInputFile.getStorageMode() == fcsFile.STORAGE_FLOAT) {
+            float[][] events = fcsInputFile.getCompensatedFloatEventList();
+            floatEventsInitl = new FloatBuffer[events.length];
+            for (int i = 0; i < events.length; i++) {
+                floatEventsInitl[i] = FloatBuffer.wrap(events[i]);
+            }
+        } else if (loadEvents) {
+            eventsInitl = new Array2DRowRealMatrix(fcsInputFile.getCompensatedEventList());
+        }
+    }
+
+    /**
+     * Wraps the compensated events loaded by an FCSLoader, either doubles or
+     * floats, along with the events of every cluster if the file has a
+     * cluster channel
+     */
+    FCSOperations(fcsFile inputFile, double[][] events, float[][] floatEvents, ClusterIndex clusterIndex) {
         fcsInputFile = inputFile;
-        JOptionPane.showMessageDialog(null, "line 38");
-        eventsInitl = new Array2DRowRealMatrix(fcsInputFile.getCompensatedEventList());
-        JOptionPane.showMessageDialog(null, "line 40");
+        if (floatEvents != null) {
+            floatEventsInitl = new FloatBuffer[floatEvents.length];
+            for (int i = 0; i < floatEvents.length; i++) {
+                floatEventsInitl[i] = FloatBuffer.wrap(floatEvents[i]);
+            }
+        } else {
+            eventsInitl = new Array2DRowRealMatrix(events, false);
+        }
+        this.clusterIndex = clusterIndex;
+    }
+
+    /**
+     * Starts loading the compensated events of a file on a background thread
+     * and returns the loader, whose get() returns the FCSOperations. The
+     * listener, if not null, is added before the loading starts so it sees
+     * every stage.
+     */
+    public static FCSLoader loadAsync(File inputFile, int storageMode, PropertyChangeListener listener) {
+        FCSLoader loader = new FCSLoader(inputFile, storageMode);
+        if (listener != null) {
+            loader.addPropertyChangeListener(listener);
+        }
+        loader.execute();
+        return loader;
     }
 
      public fcsFile getFCSFile() {
@@ -69,10 +185,107 @@ public class FCSOperations {
         return fcsInputFile.getEventCount();
     }
 
+    /**
+     * Returns the events of a channel. Events stored as floats are widened
+     * the first time their channel is asked for, and the last two channels
+     * are kept, so replotting the same axes does not widen them again. The
+     * array is shared and must not be changed.
+     */
     public double[] getEvents(String channel) {
+        if (floatEventsInitl != null) {
+            return getWidenedColumn(fcsInputFile.getChannelIdFromShortName(channel));
+        }
+        if (eventsInitl == null) {
+            return streamEvents(fcsInputFile.getChannelIdFromShortName(channel));
+        }
         return eventsInitl.getDataRef()[fcsInputFile.getChannelIdFromShortName(channel)];
     }
 
+    private synchronized double[] getWidenedColumn(int channel) {
+        Integer key = Integer.valueOf(channel);
+        double[] events = widenedColumns.get(key);
+        if (events == null) {
+            events = fcsFile.toDoubleArray(floatEventsInitl[channel]);
+            widenedColumns.put(key, events);
+        }
+        return events;
+    }
+
+    /**
+     * Returns whether the events are streamed from the file rather than held
+     * in memory, in which case getEventBlocks() is the way to make a pass
+     * over all of them without decoding whole channels
+     */
+    public boolean isStreamed() {
+        return (eventsInitl == null) && (floatEventsInitl == null);
+    }
+
+    /**
+     * Returns the compensated events in blocks of at most blockSize events
+     */
+    public EventBlockIterator getEventBlocks(int blockSize) throws FileNotFoundException, IOException {
+        return fcsInputFile.getCompensatedEventBlocks(blockSize);
+    }
+
+    /**
+     * Returns the bytes taken by the events held on the heap and, in
+     * memoryUsage[1], by the columns mapped from a column cache. Every
+     * column counts its events times the width of its elements, once however
+     * many lists share it.
+     */
+    long[] getMemoryUsage() {
+        Set<Object> heapColumns = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Set<Object> mappedColumns = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        if (eventsInitl != null) {
+            heapColumns.addAll(Arrays.asList((Object[]) eventsInitl.getDataRef()));
+        }
+        if (floatEventsInitl != null) {
+            // Buffers without an array are views of the file's mapped
+            // columns, which the file adds itself
+            for (FloatBuffer column : floatEventsInitl) {
+                if (column.hasArray()) {
+                    heapColumns.add(column.array());
+                }
+            }
+        }
+        if (clusterIndex != null) {
+            clusterIndex.collectColumns(heapColumns);
+        }
+        if (clusterStatistics != null) {
+            clusterStatistics.collectColumns(heapColumns);
+        }
+        synchronized (this) {
+            selection.collectColumns(heapColumns);
+            for (double[] column : selectedColumns) {
+                if (column != null) {
+                    heapColumns.add(column);
+                }
+            }
+            heapColumns.addAll(widenedColumns.values());
+        }
+        fcsInputFile.collectColumns(heapColumns, mappedColumns);
+
+        long[] memoryUsage = new long[2];
+        for (Object column : heapColumns) {
+            if (column instanceof double[]) {
+                memoryUsage[0] += 8L * ((double[]) column).length;
+            } else if (column instanceof float[]) {
+                memoryUsage[0] += 4L * ((float[]) column).length;
+            } else if (column instanceof int[]) {
+                memoryUsage[0] += 4L * ((int[]) column).length;
+            } else if (column instanceof long[]) {
+                memoryUsage[0] += 8L * ((long[]) column).length;
+            } else if (column instanceof short[]) {
+                memoryUsage[0] += 2L * ((short[]) column).length;
+            }
+        }
+        for (Object column : mappedColumns) {
+            memoryUsage[1] += 4L * ((FloatBuffer) column).capacity();
+        }
+        return memoryUsage;
+    }
+
     public double getEventMax(String channel) {
         return fcsInputFile.getChannelRange(fcsInputFile.getChannelIdFromShortName(channel));
     }
@@ -82,27 +295,89 @@ public class FCSOperations {
         int[] selectedClust = getSelectedNodes();
 
         numNodesSelected = selectedClust.length;
-        if (numNodesSelected == 0) {
-            eventsSlctd = null;
+        selectClusters(selectedClust);
+    }
+
+    /**
+     * Selects the events of the given clusters. Only the clusters that join
+     * or leave the selection are applied to it and to the sums of the
+     * selected events, so selecting one more node costs as much as that
+     * node's cluster. If the clusters that change hold more events than the
+     * new selection, it is rebuilt instead, which is cheaper and does not
+     * carry over the rounding of the sums.
+     */
+    private synchronized void selectClusters(int[] clusters) {
+        clusters = distinct(clusters);
+        if (clusters.length == 0) {
+            setSelection(clusters, EventBitmap.EMPTY);
+            resetSums();
+            return;
+        }
+
+        ClusterIndex index = getClusterIndex();
+        int[] added = difference(clusters, selectedClusters);
+        int[] removed = difference(selectedClusters, clusters);
+        long addedEvents = countEvents(index, added);
+        long removedEvents = countEvents(index, removed);
+
+        if (addedEvents + removedEvents < selection.getCardinality() - removedEvents + addedEvents) {
+            EventBitmap newSelection = selection;
+            if (added.length > 0) {
+                EventBitmap[] bitmaps = getBitmaps(index, added, 1);
+                bitmaps[0] = newSelection;
+                newSelection = EventBitmap.union(bitmaps);
+            }
+            if (removed.length > 0) {
+                newSelection = newSelection.andNot(EventBitmap.union(getBitmaps(index, removed, 0)));
+            }
+            setSelection(clusters, newSelection);
+            addSums(added, 1);
+            addSums(removed, -1);
         } else {
-            eventsSlctd = populateSelectedEvents(selectedClust);
+            setSelection(clusters, EventBitmap.union(getBitmaps(index, clusters, 0)));
+            resetSums();
+            addSums(clusters, 1);
         }
     }
+
+    /**
+     * Replaces the selected events, dropping the channels gathered for the
+     * previous selection
+     */
+    private void setSelection(int[] clusters, EventBitmap newSelection) {
+        selectedClusters = clusters;
+        selection = newSelection;
+        selectedColumns = new double[getChannelCount()][];
+    }
     
     public int getSelectedNodesCount() {
         return this.numNodesSelected;
     }
 
     public int getSelectedEventCount() {
-        return eventsSlctd == null ? 0 : eventsSlctd.getColumnDimension();
+        return selection.getCardinality();
     }
 
+    /**
+     * Returns the selected events of a channel in the order of the file. The
+     * channel is gathered from its events the first time it is asked for and
+     * kept until the selection changes, so changing a plotted axis gathers
+     * one channel rather than the whole selection. The array is shared and
+     * must not be changed.
+     */
     public double[] getSelectedEvents(String channel) {
         return getSelectedNodesCount() > 0 ?
-            eventsSlctd.getDataRef()[fcsInputFile.getChannelIdFromShortName(channel)] :
+            getSelectedColumn(fcsInputFile.getChannelIdFromShortName(channel)) :
             new double[0];
     }
 
+    private synchronized double[] getSelectedColumn(int channel) {
+        if (selectedColumns[channel] == null) {
+            selectedColumns[channel] = gatherSelectedEvents(channel);
+        }
+        return selectedColumns[channel];
+    }
+
 
 
     /**
@@ -133,6 +408,11 @@ public class FCSOperations {
 
     public List<AttributeValuePair> computeTStat() {
         ArrayList<AttributeValuePair> stats = new ArrayList<AttributeValuePair>();
+        ClusterStatistics statistics = getClusterStatistics();
+        if (statistics == null) {
+            return stats;
+        }
+        StatisticalSummary[] selectedStats = getSelectedStatistics();
         for (int i = 0; i < fcsInputFile.getNumChannels(); i++) {
             String name = fcsInputFile.getChannelShortName(i);
             if (name.contentEquals("Time") ||
@@ -141,7 +421,8 @@ public class FCSOperations {
                 name.contentEquals("density")) {
                 continue;
             }
-            stats.add(new AttributeValuePair(name, tTest(eventsSlctd, eventsInitl, i)));
+            double t = tTest(selectedStats[i], statistics.getTotalSummary(i));
+            stats.add(new AttributeValuePair(name, t));
         }
         Collections.sort(stats);
         Collections.reverse(stats);
@@ -203,34 +484,196 @@ public class FCSOperations {
     }
 
     /**
-     * Populates selectedEvents
+     * Returns the events of every cluster as sets, leaving the first skip
+     * places for other sets
+     */
+    private static EventBitmap[] getBitmaps(ClusterIndex index, int[] clusters, int skip) {
+        EventBitmap[] bitmaps = new EventBitmap[skip + clusters.length];
+        for (int j = 0; j < clusters.length; j++) {
+            bitmaps[skip + j] = index.getBitmap(clusters[j]);
+        }
+        return bitmaps;
+    }
+
+    private static long countEvents(ClusterIndex index, int[] clusters) {
+        long count = 0;
+        for (int cluster : clusters) {
+            count += index.getEventCount(cluster);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the distinct clusters in increasing order
      */
-    private Array2DRowRealMatrix populateSelectedEvents(int[] selectedClust) {
-        int clusterColumn = fcsInputFile.getChannelIdFromShortName("cluster");
-        ArrayList<Integer> columns = new ArrayList<Integer>();
-
-        //Populate selectedEventsInitial                        
-        for (int i = 0; i < eventsInitl.getColumnDimension(); i++) {
-            int cluster = (int) eventsInitl.getEntry(clusterColumn, i);
-            for (int j = 0; j < selectedClust.length; j++) {
-                if (cluster == selectedClust[j]) {
-                    columns.add(i);
+    private static int[] distinct(int[] clusters) {
+        int[] sorted = clusters.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int j = 0; j < sorted.length; j++) {
+            if ((j == 0) || (sorted[j] != sorted[j - 1])) {
+                sorted[count++] = sorted[j];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Returns the clusters of a that are not in b, both being distinct and in
+     * increasing order
+     */
+    private static int[] difference(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        int count = 0;
+        int j = 0;
+        for (int cluster : a) {
+            while ((j < b.length) && (b[j] < cluster)) {
+                j++;
+            }
+            if ((j == b.length) || (b[j] != cluster)) {
+                result[count++] = cluster;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Clears the sums of the selected events, which are only kept once the
+     * sums of every cluster are
+     */
+    private void resetSums() {
+        if (clusterStatistics != null) {
+            selectedSums = new double[getChannelCount()];
+            selectedSumSquares = new double[getChannelCount()];
+        } else {
+            selectedSums = null;
+            selectedSumSquares = null;
+        }
+    }
+
+    /**
+     * Adds the sums of the clusters to the sums of the selected events if
+     * sign is 1, or takes them away if it is -1
+     */
+    private void addSums(int[] clusters, int sign) {
+        if (selectedSums == null) {
+            return;
+        }
+        for (int cluster : clusters) {
+            clusterStatistics.addSums(cluster, sign, selectedSums, selectedSumSquares);
+        }
+    }
+
+    /**
+     * Returns the events of every cluster, indexing the cluster channel the
+     * first time it is called. A file without a cluster channel has an empty
+     * index, so no event is in any cluster.
+     */
+    private synchronized ClusterIndex getClusterIndex() {
+        if (clusterIndex == null) {
+            int clusterColumn = fcsInputFile.getChannelIdFromShortName("cluster");
+            if (clusterColumn < 0) {
+                clusterIndex = new ClusterIndex(new int[0]);
+                return clusterIndex;
+            }
+            int[] eventClusters = new int[getEventCount()];
+            if (floatEventsInitl != null) {
+                for (int i = 0; i < eventClusters.length; i++) {
+                    eventClusters[i] = (int) floatEventsInitl[clusterColumn].get(i);
+                }
+            } else {
+                double[] clusters = (eventsInitl != null) ?
+                    eventsInitl.getDataRef()[clusterColumn] :
+                    streamEvents(clusterColumn);
+                for (int i = 0; i < eventClusters.length; i++) {
+                    eventClusters[i] = (int) clusters[i];
                 }
             }
+            clusterIndex = new ClusterIndex(eventClusters);
         }
+        return clusterIndex;
+    }
+
 
-        int[] rows = new int[eventsInitl.getRowDimension()];
-        for (int i = 0; i < rows.length; i++) {
-            rows[i] = i;
+
+    /**
+     * Gathers the selected events of one channel from wherever its events
+     * are held
+     */
+    private double[] gatherSelectedEvents(int channel) {
+        double[] selected = new double[selection.getCardinality()];
+        EventBitmap.Events events = selection.iterator();
+
+        if (floatEventsInitl != null) {
+            FloatBuffer column = floatEventsInitl[channel];
+            for (int k = 0; k < selected.length; k++) {
+                selected[k] = column.get(events.next());
+            }
+        } else {
+            double[] column = (eventsInitl != null) ? eventsInitl.getDataRef()[channel] : streamEvents(channel);
+            for (int k = 0; k < selected.length; k++) {
+                selected[k] = column[events.next()];
+            }
         }
+        return selected;
+    }
 
-        return (Array2DRowRealMatrix) eventsInitl.getSubMatrix(
-                    rows,
-                    ArrayUtils.toPrimitive(columns.toArray(new Integer[0]))
-                );
+    /**
+     * Returns the sums of the events of every cluster and channel, summing
+     * them the first time it is called. When the events are not held in
+     * memory they are streamed once. Returns null if the file has no cluster
+     * channel or the events cannot be read.
+     */
+    synchronized ClusterStatistics getClusterStatistics() {
+        if (clusterStatistics == null) {
+            if (fcsInputFile.getChannelIdFromShortName("cluster") < 0) {
+                return null;
+            }
+            ClusterIndex index = getClusterIndex();
+            if (floatEventsInitl != null) {
+                clusterStatistics = ClusterStatistics.forColumns(index, floatEventsInitl);
+            } else if (eventsInitl != null) {
+                clusterStatistics = ClusterStatistics.forColumns(index, eventsInitl.getDataRef());
+            } else {
+                try {
+                    clusterStatistics = ClusterStatistics.forBlocks(index,
+                            getEventBlocks(fcsFile.DEFAULT_BLOCK_SIZE),
+                            fcsInputFile.getChannelIdFromShortName("cluster"),
+                            getChannelCount());
+                } catch (IOException ex) {
+                    //CyLogger.getLogger(FCSOperations.class.getName()).error(null, ex);
+                    return null;
+                }
+            }
+        }
+        return clusterStatistics;
     }
 
+    /**
+     * Summarizes every channel over the selected events from the sums of the
+     * selected clusters
+     */
+    private synchronized StatisticalSummary[] getSelectedStatistics() {
+        if (selectedSums == null) {
+            resetSums();
+            addSums(selectedClusters, 1);
+        }
+
+        StatisticalSummary[] summaries = new StatisticalSummary[getChannelCount()];
+        for (int i = 0; i < summaries.length; i++) {
+            summaries[i] = clusterStatistics.summarize(i, selection.getCardinality(),
+                    selectedSums[i], selectedSumSquares[i]);
+        }
+        return summaries;
+    }
 
+    /**
+     * Decodes the compensated events of one channel, leaving the other
+     * channels alone unless they are needed to compensate it
+     */
+    private double[] streamEvents(int channel) {
+        return fcsInputFile.getCompensatedChannelEvents(channel);
+    }
 
     public class nameValuePair implements Comparable {
 
@@ -255,16 +698,16 @@ public class FCSOperations {
     }
 
     /**
-     * T-distribution between selected nodes and all nodes
+     * T-distribution between the summaries of the selected nodes and all
+     * nodes
      */
     private double tTest(
-            Array2DRowRealMatrix selectedEvents,
-            Array2DRowRealMatrix allEvents,
-            int attribute) {
+            StatisticalSummary selectedEvents,
+            StatisticalSummary allEvents) {
 
         TTestImpl tTest = new TTestImpl();
         try {
-            return tTest.t(selectedEvents.getDataRef()[attribute], allEvents.getDataRef()[attribute]);
+            return tTest.t(selectedEvents, allEvents);
         } catch (IllegalArgumentException ex) {
             //CyLogger.getLogger(FCSOperations.class.getName()).error(null, ex);
         }
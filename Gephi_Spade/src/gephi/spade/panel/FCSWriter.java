@@ -0,0 +1,391 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * FCSWriter ---
+ * <p>
+ * Writes events to an FCS 3.1 file in list mode, as little endian floats.
+ * </p>
+ *
+ * <p>
+ * The columns are added from wherever they are held: the channels of an
+ * fcsFile, decoded from its DATA segment a block at a time, or arrays and
+ * mapped buffers of one value per event, e.g. the cluster of every event.
+ * The DATA segment is written a block of events at a time, gathering each
+ * block from the columns, so writing a file with an added column never
+ * builds a second event matrix.
+ * </p>
+ *
+ * <p>
+ * The parameter and segment keywords are written from the columns and
+ * offsets. Other keywords, e.g. those copied from the source file, are
+ * written as they are, except that the spill keywords are left out if
+ * compensated channels are written, so the events are not compensated twice
+ * when the file is read back.
+ * </p>
+ */
+public final class FCSWriter {
+
+    private static final Charset charset = Charset.forName("UTF-8");
+    private static final char DELIMITER = '/';
+    private static final int HEADER_SIZE = 58;
+    // Offsets that do not fit the 8 characters of the HEADER are written as
+    // 0 there and only given by the TEXT segment
+    private static final long MAX_HEADER_OFFSET = 99999999L;
+
+    private static final Set<String> SEGMENT_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "$BEGINANALYSIS", "$ENDANALYSIS", "$BEGINDATA", "$ENDDATA", "$BEGINSTEXT", "$ENDSTEXT",
+            "$BYTEORD", "$DATATYPE", "$MODE", "$NEXTDATA", "$PAR", "$TOT"));
+    private static final Set<String> SPILL_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "SPILL", "SPILLOVER", "$SPILLOVER", "$COMP"));
+
+    private final int numEvents;
+    private final int blockSize;
+    private final List<Columns> columns = new ArrayList<Columns>();
+    private final Map<String, String> keywords = new LinkedHashMap<String, String>();
+    private boolean compensated = false;
+
+    /**
+     * Columns ---
+     * <p>
+     * One or more columns that read their values a block of events at a
+     * time, in order.
+     * </p>
+     */
+    private abstract static class Columns {
+
+        final String[] shortNames;
+        final String[] names;
+        final double[] ranges;
+
+        Columns(String[] shortNames, String[] names, double[] ranges) {
+            this.shortNames = shortNames;
+            this.names = names;
+            this.ranges = ranges;
+        }
+
+        /**
+         * Reads the count events starting at firstEvent into dest[destColumn]
+         * onwards
+         */
+        abstract void read(int firstEvent, int count, float[][] dest, int destColumn) throws IOException;
+    }
+
+    /**
+     * Creates a writer for numEvents events, writing blocks of
+     * fcsFile.DEFAULT_BLOCK_SIZE events
+     */
+    public FCSWriter(int numEvents) {
+        this(numEvents, fcsFile.DEFAULT_BLOCK_SIZE);
+    }
+
+    public FCSWriter(int numEvents, int blockSize) {
+        if ((numEvents < 0) || (blockSize <= 0)) {
+            throw new IllegalArgumentException("Invalid number of events or block size: " + numEvents + ", " + blockSize);
+        }
+        this.numEvents = numEvents;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Sets a keyword written to the TEXT segment
+     */
+    public void setKeyword(String keyword, String value) {
+        keywords.put(keyword, value);
+    }
+
+    /**
+     * Copies every keyword of a file; its parameter and segment keywords are
+     * still written from the columns and offsets
+     */
+    public void copyKeywords(fcsFile file) {
+        Properties settings = file.getSettings();
+        if (settings == null) {
+            return;
+        }
+        for (String keyword : new TreeSet<String>(settings.stringPropertyNames())) {
+            keywords.put(keyword, settings.getProperty(keyword));
+        }
+    }
+
+    /**
+     * Adds every channel of a file, compensated by its SPILL matrix if
+     * compensate is true
+     */
+    public void addColumns(final fcsFile file, final boolean compensate) {
+        checkEventCount(file.getEventCount());
+
+        int parameters = file.getNumChannels();
+        String[] shortNames = new String[parameters];
+        String[] names = new String[parameters];
+        double[] ranges = new double[parameters];
+        for (int j = 0; j < parameters; j++) {
+            shortNames[j] = file.getChannelShortName(j);
+            names[j] = file.getSettings().getProperty("$P" + (j + 1) + "S");
+            ranges[j] = file.getChannelRange(j);
+        }
+
+        compensated |= compensate;
+        columns.add(new Columns(shortNames, names, ranges) {
+            private EventBlockIterator blocks = null;
+
+            void read(int firstEvent, int count, float[][] dest, int destColumn) throws IOException {
+                if (firstEvent == 0) {
+                    // Start over for every file written
+                    blocks = compensate ? file.getCompensatedEventBlocks(blockSize) : file.getEventBlocks(blockSize);
+                }
+                if (!blocks.hasNext()) {
+                    throw new IOException("Unable to decode the events of " + file.getFile());
+                }
+
+                double[][] block = blocks.next();
+                for (int j = 0; j < block.length; j++) {
+                    float[] column = dest[destColumn + j];
+                    for (int k = 0; k < count; k++) {
+                        column[k] = (float) block[j][k];
+                    }
+                }
+            }
+        });
+    }
+
+    public void addColumn(String shortName, String name, double range, final double[] values) {
+        checkEventCount(values.length);
+        columns.add(new Columns(new String[] {shortName}, new String[] {name}, new double[] {range}) {
+            void read(int firstEvent, int count, float[][] dest, int destColumn) {
+                float[] column = dest[destColumn];
+                for (int k = 0; k < count; k++) {
+                    column[k] = (float) values[firstEvent + k];
+                }
+            }
+        });
+    }
+
+    public void addColumn(String shortName, String name, double range, final float[] values) {
+        checkEventCount(values.length);
+        columns.add(new Columns(new String[] {shortName}, new String[] {name}, new double[] {range}) {
+            void read(int firstEvent, int count, float[][] dest, int destColumn) {
+                System.arraycopy(values, firstEvent, dest[destColumn], 0, count);
+            }
+        });
+    }
+
+    public void addColumn(String shortName, String name, double range, final int[] values) {
+        checkEventCount(values.length);
+        columns.add(new Columns(new String[] {shortName}, new String[] {name}, new double[] {range}) {
+            void read(int firstEvent, int count, float[][] dest, int destColumn) {
+                float[] column = dest[destColumn];
+                for (int k = 0; k < count; k++) {
+                    column[k] = values[firstEvent + k];
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a column held in a buffer, e.g. one mapped from a column cache;
+     * the buffer's position is left alone
+     */
+    public void addColumn(String shortName, String name, double range, final FloatBuffer values) {
+        checkEventCount(values.limit());
+        columns.add(new Columns(new String[] {shortName}, new String[] {name}, new double[] {range}) {
+            void read(int firstEvent, int count, float[][] dest, int destColumn) {
+                FloatBuffer view = values.duplicate();
+                view.position(firstEvent);
+                view.get(dest[destColumn], 0, count);
+            }
+        });
+    }
+
+    private void checkEventCount(int count) {
+        if (count != numEvents) {
+            throw new IllegalArgumentException("Expected " + numEvents + " events but got " + count);
+        }
+    }
+
+    /**
+     * Returns the number of parameters added so far
+     */
+    public int getParameterCount() {
+        int parameters = 0;
+        for (Columns group : columns) {
+            parameters += group.shortNames.length;
+        }
+        return parameters;
+    }
+
+    /**
+     * Writes the HEADER, TEXT and DATA segments to file, followed by a CRC
+     * of zeros, which FCS 3.1 allows for a CRC that is not computed
+     */
+    public void write(File file) throws IOException {
+        final int parameters = getParameterCount();
+        final long dataLength = (long) numEvents * parameters * 4;
+
+        // The TEXT segment holds the offsets of the DATA segment, which
+        // follows it, so build it until the offsets stop changing
+        byte[] text = buildText(parameters, 0, 0);
+        long dataStart, dataEnd;
+        while (true) {
+            dataStart = (dataLength == 0) ? 0 : HEADER_SIZE + text.length;
+            dataEnd = (dataLength == 0) ? 0 : dataStart + dataLength - 1;
+            byte[] rebuilt = buildText(parameters, dataStart, dataEnd);
+            if (rebuilt.length == text.length) {
+                text = rebuilt;
+                break;
+            }
+            text = rebuilt;
+        }
+
+        StringBuilder header = new StringBuilder("FCS3.1    ");
+        appendOffset(header, HEADER_SIZE);
+        appendOffset(header, HEADER_SIZE + text.length - 1);
+        appendOffset(header, (dataEnd > MAX_HEADER_OFFSET) ? 0 : dataStart);
+        appendOffset(header, (dataEnd > MAX_HEADER_OFFSET) ? 0 : dataEnd);
+        appendOffset(header, 0);
+        appendOffset(header, 0);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel fc = raf.getChannel();
+
+            writeFully(fc, ByteBuffer.wrap(header.toString().getBytes(charset)));
+            writeFully(fc, ByteBuffer.wrap(text));
+            writeData(fc, parameters);
+            writeFully(fc, ByteBuffer.wrap("00000000".getBytes(charset)));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the events a block at a time, each event being the values of
+     * every column in order
+     */
+    private void writeData(FileChannel fc, int parameters) throws IOException {
+        int maxCount = Math.min(blockSize, numEvents);
+        float[][] block = new float[parameters][maxCount];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(maxCount * parameters * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int first = 0; first < numEvents; first += blockSize) {
+            int count = Math.min(blockSize, numEvents - first);
+
+            int column = 0;
+            for (Columns group : columns) {
+                group.read(first, count, block, column);
+                column += group.shortNames.length;
+            }
+
+            buffer.clear();
+            for (int k = 0; k < count; k++) {
+                for (int j = 0; j < parameters; j++) {
+                    buffer.putFloat(block[j][k]);
+                }
+            }
+            buffer.flip();
+            writeFully(fc, buffer);
+        }
+    }
+
+    private byte[] buildText(int parameters, long dataStart, long dataEnd) {
+        StringBuilder text = new StringBuilder();
+        text.append(DELIMITER);
+
+        appendKeyword(text, "$BEGINANALYSIS", "0");
+        appendKeyword(text, "$ENDANALYSIS", "0");
+        appendKeyword(text, "$BEGINSTEXT", "0");
+        appendKeyword(text, "$ENDSTEXT", "0");
+        appendKeyword(text, "$BEGINDATA", Long.toString(dataStart));
+        appendKeyword(text, "$ENDDATA", Long.toString(dataEnd));
+        appendKeyword(text, "$BYTEORD", "1,2,3,4");
+        appendKeyword(text, "$DATATYPE", "F");
+        appendKeyword(text, "$MODE", "L");
+        appendKeyword(text, "$NEXTDATA", "0");
+        appendKeyword(text, "$PAR", Integer.toString(parameters));
+        appendKeyword(text, "$TOT", Integer.toString(numEvents));
+
+        int i = 1;
+        for (Columns group : columns) {
+            for (int j = 0; j < group.shortNames.length; j++, i++) {
+                appendKeyword(text, "$P" + i + "B", "32");
+                appendKeyword(text, "$P" + i + "E", "0,0");
+                appendKeyword(text, "$P" + i + "N", group.shortNames[j]);
+                appendKeyword(text, "$P" + i + "R", formatRange(group.ranges[j]));
+                if ((group.names[j] != null) && (group.names[j].length() > 0)) {
+                    appendKeyword(text, "$P" + i + "S", group.names[j]);
+                }
+            }
+        }
+
+        for (Map.Entry<String, String> keyword : keywords.entrySet()) {
+            String name = keyword.getKey().toUpperCase();
+            if (SEGMENT_KEYWORDS.contains(name) || name.matches("\\$P\\d+[A-Z]+")) {
+                continue;  // Written from the columns and offsets
+            }
+            if (compensated && SPILL_KEYWORDS.contains(name)) {
+                continue;  // The channels are already compensated
+            }
+            appendKeyword(text, keyword.getKey(), keyword.getValue());
+        }
+
+        return text.toString().getBytes(charset);
+    }
+
+    /**
+     * Appends a keyword and its value, each followed by the delimiter.
+     * Delimiters inside them are doubled, and an empty value is written as
+     * a space since FCS does not allow empty values.
+     */
+    private static void appendKeyword(StringBuilder text, String keyword, String value) {
+        if ((value == null) || (value.length() == 0)) {
+            value = " ";
+        }
+        String escape = new String(new char[] {DELIMITER, DELIMITER});
+        text.append(keyword.replace(String.valueOf(DELIMITER), escape)).append(DELIMITER);
+        text.append(value.replace(String.valueOf(DELIMITER), escape)).append(DELIMITER);
+    }
+
+    private static void appendOffset(StringBuilder header, long offset) {
+        String value = Long.toString(offset);
+        for (int k = value.length(); k < 8; k++) {
+            header.append(' ');
+        }
+        header.append(value);
+    }
+
+    private static String formatRange(double range) {
+        if ((range == Math.rint(range)) && !Double.isInfinite(range)) {
+            return Long.toString((long) range);
+        }
+        return Double.toString(range);
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fc.write(buffer);
+        }
+    }
+}
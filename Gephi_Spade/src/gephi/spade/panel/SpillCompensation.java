@@ -0,0 +1,337 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package gephi.spade.panel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.linear.LUDecompositionImpl;
+import org.apache.commons.math.linear.RealMatrix;
+
+/**
+ * SpillCompensation ---
+ * <p>
+ * Applies transpose(inverse(SPILL)) to the spill channels of events laid out
+ * like <code>fcsFile.getEventList()</code>, i.e. columns[parameter][event].
+ * </p>
+ *
+ * <p>
+ * The spill channels are the n contiguous parameters starting at start. The
+ * events are compensated in place one event at a time: the event's n spill
+ * values are copied out first, so compensating needs no memory beyond the
+ * n x n matrix and n values, however many events there are. Sums are
+ * accumulated in double in increasing channel order, the order a plain
+ * matrix multiply uses, and narrowed once for float columns.
+ * </p>
+ *
+ * <p>
+ * Every event is compensated on its own, so the events can be split into
+ * ranges compensated on separate threads. The result is the same bit for
+ * bit as compensating them on one thread.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and can be shared between files and threads.
+ * forSpillString() keeps the ones it creates in a process-wide cache keyed
+ * on the normalised SPILL string and the channels it maps to, so files from
+ * the same panel parse and invert their matrix only once.
+ * </p>
+ */
+final class SpillCompensation {
+
+    // Fewest events worth handing to a thread of its own
+    private static final int MIN_EVENTS_PER_THREAD = fcsFile.DEFAULT_BLOCK_SIZE;
+
+    // Most SPILL matrices kept in the cache
+    private static final int CACHE_SIZE = 64;
+    private static final Map<String, SpillCompensation> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, SpillCompensation>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SpillCompensation> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private final int start;
+    private final int n;
+    private final double[][] matrix;
+
+    /**
+     * Creates the compensation of the spill channels starting at start, with
+     * matrix being transpose(inverse(SPILL))
+     */
+    SpillCompensation(int start, double[][] matrix) {
+        this.start = start;
+        this.n = matrix.length;
+        this.matrix = new double[n][];
+        for (int r = 0; r < n; r++) {
+            this.matrix[r] = matrix[r].clone();
+        }
+    }
+
+    /**
+     * Returns the compensation described by a SPILL string for a file with
+     * the given channel short names, or null if there is no SPILL string or
+     * it does not match the channels
+     */
+    static SpillCompensation forSpillString(String compString, String[] channelShortname) {
+        if (compString == null)
+            return null;  // No compensation
+
+        // Split the compensation string into its values
+        //
+        // The basic structure for SPILL* is:
+        // $SPILLOVER/n,string1,string2,...,f1,f2,f3,f4,.../
+
+        String[] compValues = compString.split(",");
+        String[] compNames  = null;
+        int compDataStart   = 0;
+
+        // Normalise the values so the same matrix always has the same key
+        for (int i = 0; i < compValues.length; i++) {
+            compValues[i] = compValues[i].trim();
+        }
+
+        int n = 0;
+        try {
+            // Try to parse the number of acquisition parameters
+            n = Integer.parseInt(compValues[0]);
+            if (n <= 0 || n > channelShortname.length || compValues.length != 1 + n + n * n)
+                throw new NumberFormatException();
+        } catch (NumberFormatException nfe) {
+            //CyLogger.getLogger().error("Failed to parse parameter count in spill string",nfe);
+            return null;
+        }
+
+        compNames = Arrays.copyOfRange(compValues, 1, n+1);
+
+        // Match names in spill string to columns in parameter lists
+        compDataStart = Arrays.asList(channelShortname).indexOf(compNames[0]);
+        if (compDataStart < 0 || compDataStart + n > channelShortname.length) {
+            //CyLogger.getLogger().error("Failed to match channel "+compNames[0]+" to parameter in file");
+            return null;  // Failure match spill string names to channels
+        }
+        for (int i = 0; i < n; i++) {
+            if (!compNames[i].equals(channelShortname[compDataStart + i])) {
+                //CyLogger.getLogger().error("Spill channel are not continguous parameters in file");
+                return null;  // Spill string columns not in order
+            }
+        }
+
+        // The names are matched to the channels, so the first channel and
+        // the normalised string identify the compensation
+        StringBuilder key = new StringBuilder();
+        key.append(compDataStart);
+        for (String value : compValues) {
+            key.append(',').append(value);
+        }
+
+        SpillCompensation compensation = cache.get(key.toString());
+        if (compensation != null)
+            return compensation;
+
+        /**
+         * Populate the compensation matrix --- The values are stored in
+         * row-major order, i.e., the elements in the first row appear
+         * first.
+         */
+        double[][] matrix = new double[n][n];
+
+        // Loop through the array of compensation values
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) {
+                try {
+                    matrix[i][j] = Double.parseDouble(compValues[1 + n + i*n + j]);
+                } catch (NumberFormatException nfe) {
+                    // Set default value If a NumberFormatException occurred
+                    matrix[i][j] = 0.0d;
+                }
+            }
+        }
+
+        // Compute the inverse of the compensation data, which is applied to
+        // the data matrix as transpose(inverse(<SPILL MATRIX>)) * data
+        RealMatrix comp =
+                (new LUDecompositionImpl(new Array2DRowRealMatrix(matrix)))
+                .getSolver()
+                .getInverse();
+        compensation = new SpillCompensation(compDataStart, comp.transpose().getData());
+        cache.put(key.toString(), compensation);
+        return compensation;
+    }
+
+    /**
+     * Returns the first spill channel
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the number of spill channels
+     */
+    int getSize() {
+        return n;
+    }
+
+    /**
+     * Returns whether a channel is one of the spill channels
+     */
+    boolean isSpillChannel(int channel) {
+        return (channel >= start) && (channel < start + n);
+    }
+
+    /**
+     * Returns a copy of the row of the matrix giving the compensated values
+     * of spill channel start + r
+     */
+    double[] getRow(int r) {
+        return matrix[r].clone();
+    }
+
+    /**
+     * Compensates the events from to to - 1 of columns in place
+     */
+    void apply(double[][] columns, int from, int to) {
+        final int n = this.n;
+        final double[][] matrix = this.matrix;
+        final double[][] spill = new double[n][];
+        final double[] values = new double[n];
+
+        System.arraycopy(columns, start, spill, 0, n);
+
+        for (int i = from; i < to; i++) {
+            for (int k = 0; k < n; k++) {
+                values[k] = spill[k][i];
+            }
+            for (int r = 0; r < n; r++) {
+                final double[] row = matrix[r];
+                double sum = 0.0d;
+                for (int k = 0; k < n; k++) {
+                    sum += row[k] * values[k];
+                }
+                spill[r][i] = sum;
+            }
+        }
+    }
+
+    /**
+     * Compensates the events from to to - 1 of columns in place
+     */
+    void apply(float[][] columns, int from, int to) {
+        final int n = this.n;
+        final double[][] matrix = this.matrix;
+        final float[][] spill = new float[n][];
+        final double[] values = new double[n];
+
+        System.arraycopy(columns, start, spill, 0, n);
+
+        for (int i = from; i < to; i++) {
+            for (int k = 0; k < n; k++) {
+                values[k] = spill[k][i];
+            }
+            for (int r = 0; r < n; r++) {
+                final double[] row = matrix[r];
+                double sum = 0.0d;
+                for (int k = 0; k < n; k++) {
+                    sum += row[k] * values[k];
+                }
+                spill[r][i] = (float) sum;
+            }
+        }
+    }
+
+    /**
+     * Compensates the events from to to - 1 of columns in place on up to
+     * parallelism threads
+     */
+    void apply(final double[][] columns, int from, int to, int parallelism) {
+        inParallel(from, to, parallelism, new Range() {
+            public void apply(int rangeFrom, int rangeTo) {
+                SpillCompensation.this.apply(columns, rangeFrom, rangeTo);
+            }
+        });
+    }
+
+    /**
+     * Compensates the events from to to - 1 of columns in place on up to
+     * parallelism threads
+     */
+    void apply(final float[][] columns, int from, int to, int parallelism) {
+        inParallel(from, to, parallelism, new Range() {
+            public void apply(int rangeFrom, int rangeTo) {
+                SpillCompensation.this.apply(columns, rangeFrom, rangeTo);
+            }
+        });
+    }
+
+    private interface Range {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Splits the events from to to - 1 into one contiguous range per thread
+     * and waits for all of them. An interrupt does not stop the compensation
+     * half way; it is passed on once every range is done.
+     */
+    private static void inParallel(int from, int to, int parallelism, final Range range) {
+        int threads = Math.min(parallelism, (to - from) / MIN_EVENTS_PER_THREAD);
+
+        if (threads <= 1) {
+            range.apply(from, to);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean interrupted = false;
+
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            int rangeSize = (to - from + threads - 1) / threads;
+
+            for (int first = from; first < to; first += rangeSize) {
+                final int rangeFrom = first;
+                final int rangeTo = Math.min(first + rangeSize, to);
+
+                results.add(executor.submit(new Runnable() {
+                    public void run() {
+                        range.apply(rangeFrom, rangeTo);
+                    }
+                }));
+            }
+
+            for (Future<?> result : results) {
+                while (true) {
+                    try {
+                        result.get();
+                        break;
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        } finally {
+            executor.shutdownNow();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
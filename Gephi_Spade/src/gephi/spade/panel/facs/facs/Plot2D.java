@@ -29,6 +29,7 @@ import java.awt.*;
 import java.awt.image.*;
 import javax.imageio.*;
 import java.awt.geom.Point2D;
+import java.util.Iterator;
 
 import facs.scale.*;
 
@@ -96,6 +97,51 @@ public final class Plot2D {
                 double xChanMaximum, double yChanMaximum,
                 int xDisplay, int yDisplay
                 ) throws IOException {
+        return drawPlot(cs, xChanEvents, yChanEvents, xChanAllEvents, yChanAllEvents, null, -1, -1,
+                xChanLabel, yChanLabel, xChanMaximum, yChanMaximum, xDisplay, yDisplay);
+    }
+
+        /**
+         * Same as drawPlot() above, but bins all the events as they come out
+         * of an iterator over blocks of events, so that only one block of all
+         * the events needs to be in memory at a time.
+         *
+         * @param cs Canvas settings containing illustration parameters
+         * @param xChanEvents Selected events, x coordinates (set to null if no nodes selected, to draw all the events instead)
+         * @param yChanEvents Selected events, y coordinates (set to null if no nodes selected, to draw all the events instead)
+         * @param allEventBlocks Blocks of all the events, indexed as block[channel][event]
+         * @param xChannel Index of the x channel in each block
+         * @param yChannel Index of the y channel in each block
+         * @param xChanLabel Label for x axis
+         * @param yChanLabel Label for y axis
+         * @param xChanMaximum Minimum value for x axis
+         * @param yChanMaximum Minimum value for y axis
+         * @param xDisplay Display style (linear, log, arcsinh-fluor, arcsinh-cytof)
+         * @param yDisplay Display style (linear, log, arcsinh-fluor, arcsinh-cytof)
+         * @return
+         * @throws IOException
+         */
+        public static BufferedImage drawPlot(
+                CanvasSettings cs,
+                double[] xChanEvents, double[] yChanEvents,
+                Iterator<double[][]> allEventBlocks, int xChannel, int yChannel,
+                String xChanLabel, String yChanLabel,
+                double xChanMaximum, double yChanMaximum,
+                int xDisplay, int yDisplay
+                ) throws IOException {
+        return drawPlot(cs, xChanEvents, yChanEvents, null, null, allEventBlocks, xChannel, yChannel,
+                xChanLabel, yChanLabel, xChanMaximum, yChanMaximum, xDisplay, yDisplay);
+    }
+
+    private static BufferedImage drawPlot(
+                CanvasSettings cs,
+                double[] xChanEvents, double[] yChanEvents,
+                double[] xChanAllEvents, double[] yChanAllEvents,
+                Iterator<double[][]> allEventBlocks, int xChannel, int yChannel,
+                String xChanLabel, String yChanLabel,
+                double xChanMaximum, double yChanMaximum,
+                int xDisplay, int yDisplay
+                ) throws IOException {
         if ((cs == null) || (!cs.is2DPlot())) {
             // If the canvas settings is null or is not a 2D plot or a 3D plot,
             // then quit.
@@ -133,7 +179,10 @@ public final class Plot2D {
         // Move the graphics back to the origin
         g.translate(-cs.getStartX(), -cs.getStartY());
 
-        if (xChanEvents.length > 0) {
+        // Without selected events, all the events are drawn from the blocks
+        boolean hasEvents = (xChanEvents != null) ? (xChanEvents.length > 0) : allEventBlocks.hasNext();
+
+        if (hasEvents) {
             // If the population is not null, then draw the plot.
 
                /**
@@ -154,8 +203,6 @@ public final class Plot2D {
 
                 int type;
 
-                // Get the number of events
-                int eventCount = xChanEvents.length;
                 String scaleArg = null;
 
                 // Get the scale type flag of the default scale of the x
@@ -237,8 +284,15 @@ public final class Plot2D {
                 int plotType = cs.getPlotType();
 
                 int[][] bins = null;
+                int eventCount;
                 // get the array of bin values
-                bins = facs.PopulationL.getBinValues(xScale, yScale, xScaleArgument, yScaleArgument, cs.getNumXBins(), cs.getNumYBins(), xMin, xMax, yMin, yMax, xChanEvents, yChanEvents);
+                if (xChanEvents != null) {
+                    bins = facs.PopulationL.getBinValues(xScale, yScale, xScaleArgument, yScaleArgument, cs.getNumXBins(), cs.getNumYBins(), xMin, xMax, yMin, yMax, xChanEvents, yChanEvents);
+                    eventCount = xChanEvents.length;
+                } else {
+                    bins = facs.PopulationL.getBinValues(xScale, yScale, xScaleArgument, yScaleArgument, cs.getNumXBins(), cs.getNumYBins(), xMin, xMax, yMin, yMax, allEventBlocks, xChannel, yChannel);
+                    eventCount = countEvents(bins);
+                }
 
                 // Draw the plot
                 
@@ -246,12 +300,20 @@ public final class Plot2D {
                 g.translate(cs.getStartX(), cs.getStartY());
 
                 // If there are background events to show, draw them as gray dots
-                if (xChanAllEvents != null) {
-                    int[][] bkgbins = facs.PopulationL.getBinValues(xScale, yScale, xScaleArgument, yScaleArgument, cs.getNumXBins(), cs.getNumYBins(), xMin, xMax, yMin, yMax, xChanAllEvents, yChanAllEvents);
+                if ((xChanAllEvents != null) || ((allEventBlocks != null) && (xChanEvents != null))) {
+                    int[][] bkgbins;
+                    int bkgEventCount;
+                    if (xChanAllEvents != null) {
+                        bkgbins = facs.PopulationL.getBinValues(xScale, yScale, xScaleArgument, yScaleArgument, cs.getNumXBins(), cs.getNumYBins(), xMin, xMax, yMin, yMax, xChanAllEvents, yChanAllEvents);
+                        bkgEventCount = xChanAllEvents.length;
+                    } else {
+                        bkgbins = facs.PopulationL.getBinValues(xScale, yScale, xScaleArgument, yScaleArgument, cs.getNumXBins(), cs.getNumYBins(), xMin, xMax, yMin, yMax, allEventBlocks, xChannel, yChannel);
+                        bkgEventCount = countEvents(bkgbins);
+                    }
                     //drawDots(bkgbins, g, Color.LIGHT_GRAY, cs.getPlotHeight());
                     double[][] bkgDensityValues = facs.PopulationL.getTriweightKernelDensityValues(bkgbins, cs.getSmoothing() * 2.5d);
                     double[][] bkgSortedDensityValues = facs.PopulationL.sortDensityValues(bkgDensityValues);
-                    drawBkgContours(bkgbins, xChanAllEvents.length, bkgDensityValues, bkgSortedDensityValues, g, cs);
+                    drawBkgContours(bkgbins, bkgEventCount, bkgDensityValues, bkgSortedDensityValues, g, cs);
                 }
 
                 if (plotType == Representation.DOT_PLOT) {
@@ -315,6 +377,22 @@ public final class Plot2D {
         return image;
     }
 
+   /**
+    * <p>
+    * Returns the number of events binned in bins; every event falls in a bin,
+    * since events out of range are binned at the edges.
+    * </p>
+    */
+    private static int countEvents(int[][] bins) {
+        int count = 0;
+        for (int[] column : bins) {
+            for (int bin : column) {
+                count += bin;
+            }
+        }
+        return count;
+    }
+
    /**
     * <p>
     * Draws a simple dot plot of the bin values in the array of int arrays bins
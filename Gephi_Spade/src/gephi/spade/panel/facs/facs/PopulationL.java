@@ -5,6 +5,7 @@ import facs.scale.ScaleArgument;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 
 public class PopulationL {
 
@@ -55,6 +56,56 @@ public class PopulationL {
     public static int[][]getBinValues(final Scale xScale, final Scale yScale, final ScaleArgument xScaleArgument,
             final ScaleArgument yScaleArgument, final int numXBins, final int numYBins,double xMin, double xMax, double yMin,
             double yMax, final double[] xChannelEvents, final double[] yChannelEvents) throws IOException {
+        return addBinValues(null, xScale, yScale, xScaleArgument, yScaleArgument, numXBins, numYBins, xMin, xMax, yMin, yMax,
+                xChannelEvents, yChannelEvents);
+    }
+
+    /**
+     * <p>
+     * Same as getBinValues() above, but bins the events as they come out of
+     * an iterator over blocks of events instead of from whole channels, so
+     * that only one block needs to be in memory at a time.
+     * </p>
+     *
+     * <p>
+     * Each block is an array of double arrays indexed as
+     * block[channel][event], as returned by
+     * <code>gephi.spade.panel.EventBlockIterator</code>.
+     * </p>
+     *
+     * @param blocks
+     * iterator over the blocks of events to bin.
+     * @param xChannel
+     * int index of the x channel in each block.
+     * @param yChannel
+     * int index of the y channel in each block.
+     * @return array of arrays of ints containing the array of bin values.
+     * @throws IOException
+     */
+    public static int[][]getBinValues(final Scale xScale, final Scale yScale, final ScaleArgument xScaleArgument,
+            final ScaleArgument yScaleArgument, final int numXBins, final int numYBins,double xMin, double xMax, double yMin,
+            double yMax, final Iterator<double[][]> blocks, final int xChannel, final int yChannel) throws IOException {
+        int[][] bins = new int[numXBins][numYBins];
+
+        while (blocks.hasNext()) {
+            double[][] block = blocks.next();
+
+            addBinValues(bins, xScale, yScale, xScaleArgument, yScaleArgument, numXBins, numYBins, xMin, xMax, yMin, yMax,
+                    block[xChannel], block[yChannel]);
+        }
+
+        return bins;
+    }
+
+    /**
+     * <p>
+     * Bins the events into bins, allocating the array of bin values if bins is
+     * null, and returns it.
+     * </p>
+     */
+    private static int[][]addBinValues(int[][] bins, final Scale xScale, final Scale yScale, final ScaleArgument xScaleArgument,
+            final ScaleArgument yScaleArgument, final int numXBins, final int numYBins,double xMin, double xMax, double yMin,
+            double yMax, final double[] xChannelEvents, final double[] yChannelEvents) throws IOException {
 
         double temp;
 
@@ -110,14 +161,16 @@ public class PopulationL {
             yScaleFactor = (double) numYBins / (yScale.getValue(yMax, yScaleArgument) - scaledYMin);
         }
 
-        // Allocate the array of bin values
-        int[][] bins = new int[numXBins][numYBins];
+        if (bins == null) {
+            // Allocate the array of bin values
+            bins = new int[numXBins][numYBins];
 
-        // Initialize all the bin values to 0 - not necessary, but it doesn't
-        // hurt
-        for (int i = 0; i < numXBins; i++) {
-            for (int j = 0; j < numYBins; j++) {
-                    bins[i][j] = 0;
+            // Initialize all the bin values to 0 - not necessary, but it doesn't
+            // hurt
+            for (int i = 0; i < numXBins; i++) {
+                for (int j = 0; j < numYBins; j++) {
+                        bins[i][j] = 0;
+                }
             }
         }
 
@@ -13,11 +13,6 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
-// Use the new I/O for speed
-import java.nio.*;
-import java.nio.channels.*;
-import java.nio.charset.*;
-
 /**
  * fcsFile
  * ---
@@ -29,11 +24,6 @@ import java.nio.charset.*;
  */
 
 public final class fcsFile {
-  // The ENCODING to use for decoding the text data in the file
-  // ISO-8859-1 is the standard extension of ASCII
-  private static final String ENCODING = "ISO-8859-1";
-  private static final Charset charset = Charset.forName(ENCODING);
-
   // Size of the version string in bytes
   private static final int VERSION_SIZE = 6;
 
@@ -44,16 +34,20 @@ public final class fcsFile {
   private static final boolean EXTRACTP = false;
 
 
+
   /**
-   * Decoder for parsing the text portions
+   * The underlying file
    */
-  private CharsetDecoder decoder;
+  private File file;
 
 
   /**
-   * The underlying file
+   * The decoding core
+   * ---
+   * <p>The TEXT segment is read and the events are decoded by
+   * <code>gephi.spade.panel.fcsFile</code>, so the file is only parsed once.</p>
    */
-  private File file;
+  private final gephi.spade.panel.fcsFile core;
 
 
   /**
@@ -224,226 +218,52 @@ public final class fcsFile {
    * @throws <code>java.io.IOException</code> if an IO exception occurred.
    */
   public fcsFile(File file, boolean extractEventsP) throws FileNotFoundException, IOException {
-    this.file = file;
-
-    // Set isFCSP to false - start by assuming the file is not an FCS file
-    isFCSP = false;
+    // Read the TEXT segment once, with the decoding core, and take the settings from it
+    this(new gephi.spade.panel.fcsFile(file, false));
 
-    // Read the file and initialize all the fields
-    readFile(extractEventsP);
+    if(isFCSP && extractEventsP) {
+    // If we are extracting data, then do so.
+      extractEvents();
+    }
   }
 
 
   /**
-   * readFile
+   * Constructor
    * ---
-   * <p>A helper function to read all the fields in the TEXT segment of the
-   * FCS file.</p>
+   * <p>Wraps a <code>gephi.spade.panel.fcsFile</code>, so the settings come from
+   * its TEXT segment and the events from its decoders. Events the wrapped file
+   * already holds are not decoded again.</p>
    *
-   * <p>This helper function should only be called once by the constructor as
-   * it is quite expensive.</p>
-   *
-   * @param extractEventsP boolean flag indicating whether to extract events in the underlying file.
-   * @throws <code>java.io.FileNotFoundException</code> if the file is not found.
-   * @throws <code>java.io.IOException</code> if an IO exception occurred.
+   * @param core <code>gephi.spade.panel.fcsFile</code> object to wrap.
    */
-  private void readFile(boolean extractEventsP) throws FileNotFoundException, IOException {
-    // Open a file input stream to the file
-    FileInputStream fis = new FileInputStream(file);
-
-    // Create a byte array to hold the version
-    byte[] versionArray = new byte[VERSION_SIZE];
-
-    // Read the version into the byte array
-    int numRead = fis.read(versionArray);
-
-    if(numRead < VERSION_SIZE) {
-    // If the number of bytes read is less than the number of bytes in the version string, then the file is too small to be an FCS file.
-      isFCSP = false;
-
-      // Close the file input stream
-      fis.close();
+  public fcsFile(gephi.spade.panel.fcsFile core) {
+    this.file = core.getFile();
+    this.core = core;
 
-      // Quit
-      return;
-    }
-
-    // Decode the version using the default encoding
-    version = new String(versionArray);
-
-    // Determine whether the file is an FCS file by whether the version string starts with the FCS_PREFIX
-    isFCSP = version.startsWith(FCS_PREFIX);
+    isFCSP = core.isFCS();
 
     if(!isFCSP) {
-    // If the file is not an FCS file, then close the file and quit.
-      // Close the file input stream
-      fis.close();
-
-      // Quit
-      return;
-    }
-
-    /**
-     * At this point, we are pretty sure that the file is an FCS file.
-     * So, we parse it.
-     */
-
-    /**
-     * Get the standard HEADER stuff
-     */
-    // Skip 4 bytes to get to byte 10
-    fis.skip(4);
-
-    // Create a byte array to hold the HEADER
-    byte[] headerArray = new byte[48];
-
-    // Read the header into the byte array
-    numRead = fis.read(headerArray);
-
-    if(numRead < 48) {
-    // If the number of bytes read is less than 48, then the file is too small to be an FCS file.
-      isFCSP = false;
-
-      // Close the file input stream
-      fis.close();
-
-      // Quit
-      return;
-    }
-
-    try {
-      // Try to parse the TEXT segment start and end and DATA segment start and end
-      textStart = Integer.parseInt((new String(headerArray, 0, 8)).trim());
-      textEnd = Integer.parseInt((new String(headerArray, 8, 8)).trim());
-      dataStart = Integer.parseInt((new String(headerArray, 16, 8)).trim());
-      dataEnd = Integer.parseInt((new String(headerArray, 24, 8)).trim());
-    }
-    catch(NumberFormatException nfe) {
-    // If a NumberFormatException occured, then quit because there's nothing we can do without the TEXT or DATA segment.
-      // Close the file input stream
-      fis.close();
-
+    // If the file is not an FCS file, then there is nothing more to get.
       return;
     }
 
-    /**
-     * Get the ANALYSIS segment limits
-     */
-    try {
-      // Try to parse the analysisStart and analysisEnd
-      analysisStart = Integer.parseInt((new String(headerArray, 32, 8)).trim());
-      analysisEnd = Integer.parseInt((new String(headerArray, 40, 8)).trim());
-    }
-    catch(NumberFormatException nfe) {
-    // If a NumberFormatException occured, then set the ANALYSIS start and end to 0 since this segment is optional.
-      analysisStart = 0;
-      analysisEnd = 0;
-    }
-
-    /**
-     * Use NIO to read the OTHER and TEXT segments
-     */
-
-    // Get the channel for the input file
-    FileChannel fc = fis.getChannel();
-
-    // Move the channel's position back to 0
-    fc.position(0);
-
-    // Map the TEXT segment to memory
-    MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, textEnd + 1);
-
-
-    /**
-     * Create the character decoder for parsing characters
-     */
-    decoder = charset.newDecoder();
-
-
-    /**
-     * Get the OTHER segment
-     */
-    mbb.limit(textStart);
-    mbb.position(58);
-    CharBuffer other = decoder.decode(mbb.slice());
-
-
-    /**
-     * Get the TEXT segment
-     */
-    mbb.limit(textEnd + 1);
-    mbb.position(textStart);
-    text = decoder.decode(mbb.slice()).toString();
-
-
-    /**
-     * Close the file since we have the string version of the TEXT segment
-     */
-
-    // Close the file channel
-    fc.close();
-
-    // Close the file input stream
-    fis.close();
-
-
-    /**
-     * Decode the TEXT segment
-     */
-
-    // The first character of the primary TEXT segment contains the delimiter character
-    delimiter = text.charAt(0);
-
-
-    /**
-     * Key/Value Pairs
-     */
-
-    // Generate all the pairs
-    String[] pairs;
-
-    if(delimiter == '\\') {
-    // If the delimiter character is a backslash, then we have to escape it in the regular expression.
-      pairs = text.split("[\\\\]");
-    }
-    else {
-    // Otherwise, we can just split it normally by using the character in the regular expression.
-      pairs = text.split("[" + Character.toString(delimiter) + "]");
-    }
-
-
-    /**
-     * Calculate the number of pairs
-     * ---
-     * The number of pairs is the length of the pairs array minus 1 divided by 2.
-     * The one is due to the empty first element from the Java split above.
-     */
-    int numPairs = (pairs.length - 1) / 2;
-
-    // Create a mapping for each key and its value
-    settings = new Properties();
-
-    // Loop through the TEXT segment we just split to get the keys and values
-    // The key is in (i * 2) + 1 to account for the empty first element.
-    // The value is in (i * 2) + 2 to account for the empty first element.
-    for(int i = 0; i < numPairs; i++) {
-      settings.setProperty(pairs[(i * 2) + 1].trim(), pairs[(i * 2) + 2].trim());
-    }
+    version = core.getVersion();
+    textStart = core.getTextStart();
+    textEnd = core.getTextEnd();
+    dataStart = core.getDataStart();
+    dataEnd = core.getDataEnd();
+    analysisStart = core.getAnalysisStart();
+    analysisEnd = core.getAnalysisEnd();
+    delimiter = core.getDelimiter();
+    text = core.getText();
+    settings = core.getSettings();
 
     // Go through all the key/value pairs and parse them
     parseSettings();
-
-
-    /**
-     * Extract Events
-     */
-
-    if(extractEventsP) {
-    // If we are extracting data, then do so.
-      extractEvents();
-    }
   }
 
+
   /**
    * parseSettings
    * ---
@@ -793,7 +613,11 @@ public final class fcsFile {
   /**
    * extractEvents
    * ---
-   * <p>Extracts the events from the FCS file using NIO.</p>
+   * <p>Extracts the events from the FCS file using the decoding core.</p>
+   *
+   * <p>The core decodes the events a block at a time straight into the rows
+   * of eventList, so the events are never held a second time as
+   * columns.</p>
    *
    * @throws <code>java.io.FileNotFoundException</code> if the file is not found.
    * @throws <code>java.io.IOException</code> if an IO exception occurred.
@@ -806,213 +630,11 @@ public final class fcsFile {
       return;
     }
 
-    // Open a file input stream to the file
-    FileInputStream fis = new FileInputStream(file);
-
-    // Get the channel for the file
-    FileChannel fc = fis.getChannel();
-
-    // Map the DATA segment to memory
-    MappedByteBuffer data = fc.map(FileChannel.MapMode.READ_ONLY, dataStart, dataEnd - dataStart + 1);
-
-    /**
-     * We don't need to worry about endian-ness here since ASCII is one byte,
-     * and float and double are IEEE standards.
-     */
-
-    if(dataType != null) {
-      if(dataType.equalsIgnoreCase("I")) {
-      // If the data type is "I", then it is binary integer.
-        readBinIntData(data);
-      }
-      else if(dataType.equalsIgnoreCase("F")) {
-      // If the data type is "F", then it is floating point.
-        readFloatData(data);
-      }
-      else if(dataType.equalsIgnoreCase("D")) {
-      // If the data type is "D", then it is double precision floating point
-        readDoubleData(data);
-      }
-      else if(dataType.equalsIgnoreCase("A")) {
-      // If the data type is "A", then it is ASCII.
-        readASCIIData(data);
-      }
-    }
-
-    // Close the file channel
-    fc.close();
-
-    // Close the file input stream
-    fis.close();
-  }
-
-  /**
-   * readBinIntData
-   * ---
-   * <p>Reads binary integers in list mode in the DATA segment and updates eventList.</p>
-   *
-   * <p>Assumes that the bits for the values are byte-aligned.
-   * It needs to be fixed if that is not the case.</p>
-   *
-   * @param data <code>ByteBuffer</code> containing the DATA segment of the underlying file.
-   */
-  private void readBinIntData(ByteBuffer data) {
-    // Allocate the eventList
-    eventList = new int[totalEvents][parameters];
-
-    int numBytes, value, range, currByte;
-
-    for(int i = 0; i < totalEvents; i++) {
-      for(int j = 0; j < parameters; j++) {
-        // Calculate the number of bytes used from the number of bits used
-        numBytes = ((int)channelBits[j])/8;
-
-        // Get the range of the current parameter - will let us build the mask
-        range = (int)channelRange[j];
+    eventList = core.getIntEventRows();
 
-        // Initialize the current value to 0
-        value = 0;
-
-        if(littleEndianP) {
-        // If the byte order is little endian, then build the value to the left.
-          for(int k = 0; k < numBytes; k++) {
-            // Get the next 8 bits masking to make sure Java doesn't prepend 1's
-            currByte = (data.get() & 0xFF);
-
-            // Shift the 8 bits into position
-            currByte <<= (8 * k);
-
-            // Or the 8 bits with the current value
-            value |= currByte;
-          }
-        }
-        else {
-        // Otherwise, the byte order is big endian, so build the value to the right.
-          for(int k = 0; k < numBytes; k++) {
-            // Left shift the previous bits in value to make room
-            value <<= 8;
-
-            // Grab the next 8 bits masking to make sure Java doesn't prepend 1's
-            value |= (data.get() & 0xFF);
-          }
-        }
-
-        /**
-         * From the FCS specification:
-         * ---
-         * The remaining bits are usually unused and set to "0"; however, some
-         * file writers store non-data information in that bit-space.
-         * Implementers must use a bit mask when reading these list mode parameter
-         * values to insure that erroneous values are not read from the unused bits.
-         */
-
-        // Mask the value based on the range
-        value &= (range - 1);
-
-        // Store the value into the array
-        eventList[i][j] = value;
-      }
-    }
-  }
-
-  /**
-   * readFloatData
-   * ---
-   * <p>Reads floating point values in list mode in the DATA segment and updates eventList
-   * with the integer values of the values.</p>
-   *
-   * @param data <code>ByteBuffer</code> containing the DATA segment of the underlying file.
-   */
-  private void readFloatData(ByteBuffer data) {
-    // Allocate the eventList
-    eventList = new int[totalEvents][parameters];
-
-    if(littleEndianP) {
-      data.order(ByteOrder.LITTLE_ENDIAN);
-    }
-
-    // Convert the byte buffer into a float buffer - doesn't get any easier
-    FloatBuffer fb = data.asFloatBuffer();
-      
-    for(int i = 0; i < totalEvents; i++) {
-      for(int j = 0; j < parameters; j++) {
-        // Store the value into the array
-        eventList[i][j] = (int)fb.get();
-      }
-    }
-  }
-
-  /**
-   * readDoubleData
-   * ---
-   * <p>Reads double precision floating point values in list mode in the DATA segment
-   * and updates eventList with the integer values of the values.</p>
-   *
-   * @param data <code>ByteBuffer</code> containing the DATA segment of the underlying file.
-   */
-  private void readDoubleData(ByteBuffer data) {
-    // Allocate the eventList
-    eventList = new int[totalEvents][parameters];
-
-    if(littleEndianP) {
-      data.order(ByteOrder.LITTLE_ENDIAN);
-    }
-
-    // Convert the byte buffer into a double buffer - doesn't get any easier
-    DoubleBuffer db = data.asDoubleBuffer();
-
-    for(int i = 0; i < totalEvents; i++) {
-      for(int j = 0; j < parameters; j++) {
-        // Store the value into the array
-        eventList[i][j] = (int)db.get();
-      }
-    }
-  }
-
-  /**
-   * readASCIIData
-   * ---
-   * <p>Reads ASCII values in list mode in the DATA segment and updates
-   * eventList with the integer values of the values.</p>
-   *
-   * @param data <code>ByteBuffer</code> containing the DATA segment of the underlying file.
-   */
-  private void readASCIIData(ByteBuffer data) {
-    /**
-     * Calculate the number of characters in each event of the flow file
-     */
-
-    // Initialize the number of characters in each event to 0
-    int numCharsPerEvent = 0;
-
-    // Loop through all the parameters adding the number of characters in each parameter
-    for(int i = 0; i < parameters; i++) {
-      numCharsPerEvent += channelBits[i];
-    }
-
-
-    // Allocate the eventList
-    eventList = new int[totalEvents][parameters];
-
-    // Convert the byte buffer into a char buffer - doesn't get any easier
-    CharBuffer cb = data.asCharBuffer();
-
-    // Initialize the current character to 0
-    int currChar = 0;
-
-    for(int i = 0; i < totalEvents; i++) {
-      for(int j = 0; j < parameters; j++) {
-        try {
-          // Store the value into the array
-          eventList[i][j] = Integer.parseInt(cb.subSequence(currChar, currChar + channelBits[i]).toString());
-        }
-        catch(NumberFormatException nfe) {
-          eventList[i][j] = 0;
-        }
-
-        // Increment the current character
-        currChar += channelBits[i];
-      }
+    if(eventList == null) {
+    // If the data type could not be decoded, then leave the list of events empty.
+      eventList = new int[0][parameters];
     }
   }
 
@@ -44,10 +44,7 @@ import java.util.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.*;
-import org.apache.commons.math.linear.Array2DRowRealMatrix;
-import org.apache.commons.math.linear.BlockRealMatrix;
-import org.apache.commons.math.linear.LUDecompositionImpl;
-import org.apache.commons.math.linear.RealMatrix;
+import java.util.concurrent.*;
 
 /**
  * fcsFile ---
@@ -73,10 +70,21 @@ public final class fcsFile {
     private static final String FCS_PREFIX = "FCS";
     // Default behavior for whether to extract events
     private static final boolean EXTRACTP = false;
-    /**
-     * Decoder for parsing the text portions
-     */
-    private CharsetDecoder decoder;
+    // Default number of events decoded per block when streaming events
+    public static final int DEFAULT_BLOCK_SIZE = 65536;
+    // Subsampling methods for previews of large files
+    public static final int SAMPLE_UNIFORM = 0;
+    public static final int SAMPLE_RANDOM = 1;
+    // Fewest events worth handing to a decoding thread of its own
+    private static final int MIN_EVENTS_PER_THREAD = DEFAULT_BLOCK_SIZE;
+    // Storage modes for the decoded events
+    public static final int STORAGE_DOUBLE = 0;
+    public static final int STORAGE_FLOAT = 1;
+    // Column cache files start with "FCSCOLS" and a format version
+    private static final long COLUMN_CACHE_MAGIC = 0x464353434f4c5331L;
+    private static final int COLUMN_CACHE_HEADER_SIZE = 64;
+    // Extension appended to the FCS file name for the default column cache
+    public static final String COLUMN_CACHE_EXTENSION = ".cols";
     /**
      * The underlying file
      */
@@ -85,6 +93,18 @@ public final class fcsFile {
      * Boolean flag of whether the file is an FCS file.
      */
     private boolean isFCSP;
+    /**
+     * How the decoded events are stored, either STORAGE_DOUBLE or
+     * STORAGE_FLOAT.
+     */
+    private int storageMode = STORAGE_DOUBLE;
+    /**
+     * Number of threads used to decode the DATA segment and to compensate
+     * the event list. New files start with the default, which is one thread
+     * per available processor.
+     */
+    private static volatile int defaultDecodeParallelism = Runtime.getRuntime().availableProcessors();
+    private int decodeParallelism = defaultDecodeParallelism;
     /**
      * File Information
      */
@@ -98,19 +118,22 @@ public final class fcsFile {
     public int supplementalStart = 0;
     public int supplementalEnd = 0;
     public char delimiter = '\\'; // TEXT segment delimiter character
-    public String text = null; // The entire TEXT segment
+    public String text = null; // The entire TEXT segment, set by getText()
     /**
      * settings ---
      * <p>
-     * <code>java.util.Properties</code> object settings contains all the
-     * key/value pairs in the TEXT segment.
+     * FCSKeywords object settings indexes all the key/value pairs in the TEXT
+     * segment and decodes each value the first time it is asked for.
      * </p>
      *
      * <p>
-     * This is a good way to handle all the pairs for hardcore Java people.
+     * getSettings() gives them as a <code>java.util.Properties</code> object
+     * for hardcore Java people.
      * </p>
      */
-    private Properties settings = null;
+    private FCSKeywords settings = null;
+    // The raw bytes of the TEXT segment
+    private byte[] textBytes = null;
     /**
      * All the public fields ---
      * <p>
@@ -175,6 +198,94 @@ public final class fcsFile {
     public double[] ampValue = null;
     public int totalEvents = 0;
     protected double[][] eventList = null;
+    protected float[][] floatEventList = null;
+    /**
+     * Compensation derived from the SPILL string ---
+     * <p>
+     * The matrix transpose(inverse(SPILL)) and the compensated parameters it
+     * applies to, computed once on first use.
+     * </p>
+     */
+    private SpillCompensation compensation = null;
+    /**
+     * Columns mapped from a column cache file ---
+     * <p>
+     * One native-order float buffer per channel, or null if no column cache
+     * is open. The buffers live off the heap and are paged in by the OS.
+     * </p>
+     */
+    private FloatBuffer[] mappedColumns = null;
+    private boolean mappedColumnsCompensated = false;
+    // Heap copy of compensated mapped columns, made the first time the
+    // compensated float event list is asked for
+    private float[][] compensatedFloatEventList = null;
+    /**
+     * Integer decoder layout ---
+     * <p>
+     * Built once from $PnB and $PnR when the TEXT segment is read: the number
+     * of bytes and the range mask of each parameter, the number of bytes in
+     * each event, and whether every parameter is 16 or 32 bits wide so a
+     * specialised decoder can be used. If any parameter is not a whole number
+     * of bytes wide the values are packed, so the offset of each parameter
+     * and the number of bits in each event are kept instead.
+     * </p>
+     */
+    private static final int INT_LAYOUT_MIXED = 0;
+    private static final int INT_LAYOUT_16 = 1;
+    private static final int INT_LAYOUT_32 = 2;
+    private static final int INT_LAYOUT_PACKED = 3;
+    private int intLayout = INT_LAYOUT_MIXED;
+    private int[] intBytes = null;
+    private int[] intMasks = null;
+    private int intBytesPerEvent = 0;
+    private int[] intBitOffsets = null;
+    private int intBitsPerEvent = 0;
+    /**
+     * Lazily decoded channels ---
+     * <p>
+     * Columns decoded one channel at a time on first access, kept in access
+     * order so the least recently used column is evicted once more than
+     * channelCacheSize are cached. Raw channels are keyed by their number and
+     * compensated channels by parameters plus their number. The DATA segment
+     * stays mapped while any channel is decoded this way.
+     * </p>
+     */
+    public static final int DEFAULT_CHANNEL_CACHE_SIZE = 8;
+    private int channelCacheSize = DEFAULT_CHANNEL_CACHE_SIZE;
+    private final LinkedHashMap<Integer, double[]> channelCache = new LinkedHashMap<Integer, double[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+            return size() > channelCacheSize;
+        }
+    };
+    private ByteBuffer channelData = null;
+    /**
+     * Subsample of the events ---
+     * <p>
+     * The index in the DATA segment of each event of a subsampled file, in
+     * increasing order, or null if every event is used. When set, totalEvents
+     * is the size of the subsample and dataEvents the number of events in the
+     * DATA segment.
+     * </p>
+     */
+    private int[] sampledEvents = null;
+    private int dataEvents = 0;
+    /**
+     * Byte offset of the HEADER of the dataset read from the file. All the
+     * segment offsets of a dataset are relative to its HEADER, and datasets
+     * after the first are chained by $NEXTDATA.
+     */
+    private long datasetOffset = 0;
+    /**
+     * ASCII layout ---
+     * <p>
+     * Whether the ASCII values are delimited ($PnB of "*") rather than fixed
+     * width, and for delimited values the offset in the DATA segment of each
+     * event, found by one scan the first time the events are decoded.
+     * </p>
+     */
+    private boolean asciiDelimited = false;
+    private int[] asciiEventStarts = null;
 
     /**
      * Constructor ---
@@ -284,7 +395,71 @@ public final class fcsFile {
      * @throws <code>java.io.IOException</code> if an IO exception occurred.
      */
     public fcsFile(File file, boolean extractEventsP) throws FileNotFoundException, IOException {
+        this(file, extractEventsP, STORAGE_DOUBLE);
+    }
+
+    /**
+     * Constructor ---
+     * <p>
+     * Given a File f, the class grabs all the information about the file. The
+     * flag extractEventsP controls whether to extract the data from the file
+     * and storageMode controls how the extracted events are stored.
+     * </p>
+     *
+     * <p>
+     * With STORAGE_FLOAT the events are kept as one float array per channel,
+     * which halves the memory of the events. No precision is lost for integer
+     * and single precision data, which is all but the "D" data type.
+     * </p>
+     *
+     * @param file
+     *            <code>File</code> object pointing to the underlying file.
+     * @param extractEventsP
+     *            boolean flag for whether to extract events in the underlying
+     *            file.
+     * @param storageMode
+     *            int storage mode, either STORAGE_DOUBLE or STORAGE_FLOAT.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    public fcsFile(File file, boolean extractEventsP, int storageMode) throws FileNotFoundException, IOException {
+        this(file, extractEventsP, storageMode, 0);
+    }
+
+    /**
+     * Constructor ---
+     * <p>
+     * Given a File f, the class grabs all the information about the dataset
+     * whose HEADER starts at byte datasetOffset of the file. The offsets of
+     * all the datasets in a file are given by getDatasetOffsets(), so any
+     * dataset can be read without reading the datasets before it.
+     * </p>
+     *
+     * @param file
+     *            <code>File</code> object pointing to the underlying file.
+     * @param extractEventsP
+     *            boolean flag for whether to extract events in the underlying
+     *            file.
+     * @param storageMode
+     *            int storage mode, either STORAGE_DOUBLE or STORAGE_FLOAT.
+     * @param datasetOffset
+     *            long byte offset of the HEADER of the dataset.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    public fcsFile(File file, boolean extractEventsP, int storageMode, long datasetOffset) throws FileNotFoundException, IOException {
+        if ((storageMode != STORAGE_DOUBLE) && (storageMode != STORAGE_FLOAT)) {
+            throw new IllegalArgumentException("Unknown storage mode: " + storageMode);
+        }
+        if (datasetOffset < 0) {
+            throw new IllegalArgumentException("Negative dataset offset: " + datasetOffset);
+        }
+
         this.file = file;
+        this.storageMode = storageMode;
+        this.datasetOffset = datasetOffset;
 
         // Set isFCSP to false - start by assuming the file is not an FCS file
         isFCSP = false;
@@ -293,6 +468,102 @@ public final class fcsFile {
         readFile(extractEventsP);
     }
 
+    /**
+     * Constructor ---
+     * <p>
+     * Given a File f, the class grabs all the information about the file and
+     * extracts a subsample of at most sampleSize of its events. Only the
+     * sampled events are decoded, straight from the mapped DATA segment, so
+     * the full event list is never allocated. This is meant for previews of
+     * large files.
+     * </p>
+     *
+     * <p>
+     * With SAMPLE_UNIFORM the events are taken at a uniform stride. With
+     * SAMPLE_RANDOM they are a random subset chosen with the given seed, so
+     * the same seed always gives the same preview. Either way the events stay
+     * in file order. All the event accessors see only the subsample.
+     * </p>
+     *
+     * @param file
+     *            <code>File</code> object pointing to the underlying file.
+     * @param storageMode
+     *            int storage mode, either STORAGE_DOUBLE or STORAGE_FLOAT.
+     * @param sampleSize
+     *            int maximum number of events to extract.
+     * @param sampleMethod
+     *            int subsampling method, either SAMPLE_UNIFORM or
+     *            SAMPLE_RANDOM.
+     * @param seed
+     *            long seed of the random subset; unused by SAMPLE_UNIFORM.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    public fcsFile(File file, int storageMode, int sampleSize, int sampleMethod, long seed) throws FileNotFoundException, IOException {
+        this(file, false, storageMode);
+
+        if ((sampleMethod != SAMPLE_UNIFORM) && (sampleMethod != SAMPLE_RANDOM)) {
+            throw new IllegalArgumentException("Unknown sample method: " + sampleMethod);
+        }
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("Sample size must be at least 1: " + sampleSize);
+        }
+
+        if (!isFCSP) {
+            return;
+        }
+
+        if (sampleSize < totalEvents) {
+            sampledEvents = selectSample(totalEvents, sampleSize, sampleMethod, seed);
+            dataEvents = totalEvents;
+            totalEvents = sampleSize;
+        }
+
+        extractEvents();
+    }
+
+    /**
+     * selectSample ---
+     * <p>
+     * Selects sampleSize of the events 0..numEvents-1 in increasing order.
+     * The random subset uses selection sampling, which picks exactly
+     * sampleSize events in one pass without any other storage.
+     * </p>
+     *
+     * @param numEvents
+     *            int number of events to select from.
+     * @param sampleSize
+     *            int number of events to select, less than numEvents.
+     * @param sampleMethod
+     *            int subsampling method, either SAMPLE_UNIFORM or
+     *            SAMPLE_RANDOM.
+     * @param seed
+     *            long seed of the random subset.
+     * @return array of the selected events.
+     */
+    private static int[] selectSample(int numEvents, int sampleSize, int sampleMethod, long seed) {
+        int[] sample = new int[sampleSize];
+
+        if (sampleMethod == SAMPLE_UNIFORM) {
+            for (int i = 0; i < sampleSize; i++) {
+                sample[i] = (int) ((long) i * numEvents / sampleSize);
+            }
+        } else {
+            Random random = new Random(seed);
+            int selected = 0;
+
+            for (int e = 0; (e < numEvents) && (selected < sampleSize); e++) {
+                // Select the event with probability (still needed) / (left)
+                if (random.nextDouble() * (numEvents - e) < (sampleSize - selected)) {
+                    sample[selected++] = e;
+                }
+            }
+        }
+
+        return sample;
+    }
+
     /**
      * readFile ---
      * <p>
@@ -316,6 +587,9 @@ public final class fcsFile {
         // Open a file input stream to the file
         FileInputStream fis = new FileInputStream(file);
 
+        // Move to the HEADER of the dataset
+        fis.getChannel().position(datasetOffset);
+
         // Create a byte array to hold the version
         byte[] versionArray = new byte[VERSION_SIZE];
 
@@ -414,33 +688,19 @@ public final class fcsFile {
         // Get the channel for the input file
         FileChannel fc = fis.getChannel();
 
-        // Move the channel's position back to 0
-        fc.position(0);
-
         // Map the TEXT segment to memory
-        MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, textEnd + 1);
-
-        /**
-         * Create the character decoder for parsing characters
-         */
-        decoder = charset.newDecoder();
-
-        /**
-         * Get the OTHER segment
-         */
-        mbb.limit(textStart);
-        mbb.position(58);
-        CharBuffer other = decoder.decode(mbb.slice());
+        MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, datasetOffset + textStart, textEnd - textStart + 1);
 
         /**
-         * Get the TEXT segment
+         * Get the TEXT segment --- The bytes are copied once, straight from
+         * the mapping, and are only decoded to strings as keywords and values
+         * are looked up.
          */
-        mbb.limit(textEnd + 1);
-        mbb.position(textStart);
-        text = decoder.decode(mbb.slice()).toString();
+        textBytes = new byte[mbb.remaining()];
+        mbb.get(textBytes);
 
         /**
-         * Close the file since we have the string version of the TEXT segment
+         * Close the file since we have the bytes of the TEXT segment
          */
         // Close the file channel
         fc.close();
@@ -449,45 +709,12 @@ public final class fcsFile {
         fis.close();
 
         /**
-         * Decode the TEXT segment
-         */
-        // The first character of the primary TEXT segment contains the
-        // delimiter character
-        delimiter = text.charAt(0);
-
-        /**
-         * Key/Value Pairs
-         */
-        // Generate all the pairs
-        String[] pairs;
-
-        if (delimiter == '\\') {
-            // If the delimiter character is a backslash, then we have to escape
-            // it in the regular expression.
-            pairs = text.split("[\\\\]");
-        } else {
-            // Otherwise, we can just split it normally by using the character
-            // in the regular expression.
-            pairs = text.split("[" + Character.toString(delimiter) + "]");
-        }
-
-        /**
-         * Calculate the number of pairs --- The number of pairs is the length
-         * of the pairs array minus 1 divided by 2. The one is due to the empty
-         * first element from the Java split above.
+         * Key/Value Pairs --- The first character of the primary TEXT segment
+         * contains the delimiter character. The pairs are indexed in a single
+         * pass over the bytes.
          */
-        int numPairs = (pairs.length - 1) / 2;
-
-        // Create a mapping for each key and its value
-        settings = new Properties();
-
-        // Loop through the TEXT segment we just split to get the keys and
-        // values
-        // The key is in (i * 2) + 1 to account for the empty first element.
-        // The value is in (i * 2) + 2 to account for the empty first element.
-        for (int i = 0; i < numPairs; i++) {
-            settings.setProperty(pairs[(i * 2) + 1].trim(), pairs[(i * 2) + 2].trim());
-        }
+        settings = new FCSKeywords(textBytes);
+        delimiter = settings.getDelimiter();
 
         // Go through all the key/value pairs and parse them
         parseSettings();
@@ -760,8 +987,11 @@ public final class fcsFile {
                         // floating point
                         channelBits[i - 1] = 64;
                     } else if (dataType.equalsIgnoreCase("A")) {
-                        // If the data type is "A", then it is ASCII.
+                        // If the data type is "A", then it is ASCII. A "*"
+                        // means the values are delimited rather than fixed
+                        // width.
                         channelBits[i - 1] = 8;
+                        asciiDelimited |= "*".equals(settings.getProperty("$P" + i + "B"));
                     }
                 } else {
                     // Otherwise, set the number of channel bits to 0.
@@ -864,6 +1094,57 @@ public final class fcsFile {
                 totalEvents = calculatedNumEvents;
             }
         }
+
+        buildIntLayout();
+    }
+
+    /**
+     * buildIntLayout ---
+     * <p>
+     * Works out the integer decoder layout from the number of bits and the
+     * range of each parameter.
+     * </p>
+     */
+    private void buildIntLayout() {
+        intBytes = new int[parameters];
+        intMasks = new int[parameters];
+        intBytesPerEvent = 0;
+        intBitOffsets = new int[parameters];
+        intBitsPerEvent = 0;
+
+        boolean all16 = (parameters > 0);
+        boolean all32 = (parameters > 0);
+        boolean packed = false;
+
+        for (int j = 0; j < parameters; j++) {
+            intBitOffsets[j] = intBitsPerEvent;
+            intBitsPerEvent += channelBits[j];
+            packed |= (channelBits[j] % Byte.SIZE != 0);
+
+            // Round the number of bits up to the next full byte
+            intBytes[j] = (channelBits[j] + Byte.SIZE - 1) / Byte.SIZE;
+            intBytesPerEvent += intBytes[j];
+
+            // Mask based on the range, which also drops the sign extension of
+            // 16-bit values
+            intMasks[j] = ((int) channelRange[j]) - 1;
+            if (intBytes[j] == 2) {
+                intMasks[j] &= 0xFFFF;
+            }
+
+            all16 &= (intBytes[j] == 2);
+            all32 &= (intBytes[j] == 4);
+        }
+
+        if (packed) {
+            intLayout = INT_LAYOUT_PACKED;
+        } else if (all16) {
+            intLayout = INT_LAYOUT_16;
+        } else if (all32) {
+            intLayout = INT_LAYOUT_32;
+        } else {
+            intLayout = INT_LAYOUT_MIXED;
+        }
     }
 
     /**
@@ -881,379 +1162,1944 @@ public final class fcsFile {
             // If the byte offset of the start of the DATA segment is greater
             // than or equal to the end of the DATA segment or the number of
             // events is equal to 0, then create an empty array of events.
-            eventList = new double[0][parameters];
+            if (storageMode == STORAGE_FLOAT) {
+                floatEventList = new float[0][parameters];
+            } else {
+                eventList = new double[0][parameters];
+            }
 
             return;
         }
 
-        // Open a file input stream to the file
-        FileInputStream fis = new FileInputStream(file);
-
-        // Get the channel for the file
-        FileChannel fc = fis.getChannel();
-
         // Map the DATA segment to memory
-        MappedByteBuffer data;
+        ByteBuffer data = mapData();
 
-        try {
-            data = fc.map(FileChannel.MapMode.READ_ONLY, dataStart, dataEnd - dataStart + 1);
-        } catch (Throwable t) {
-            // Try again with a workaround to see if we can compensate for off-by-one errors that
-            // some FCS files have been known to incorporate in the ENDDATA property.
-            data = fc.map(FileChannel.MapMode.READ_ONLY, dataStart, dataEnd - dataStart);
-        }
+        // Allocate the events and decode the whole DATA segment into them,
+        // only keeping the events if the data type could be decoded
+        if (storageMode == STORAGE_FLOAT) {
+            float[][] events = new float[parameters][totalEvents];
 
-        /**
-         * We don't need to worry about endian-ness here since ASCII is one
-         * byte, and float and double are IEEE standards.
-         */
-        if (dataType != null) {
-            if (dataType.equalsIgnoreCase("I")) {
-                // If the data type is "I", then it is binary integer.
-                readBinIntData(data);
-            } else if (dataType.equalsIgnoreCase("F")) {
-                // If the data type is "F", then it is floating point.
-                readFloatData(data);
-            } else if (dataType.equalsIgnoreCase("D")) {
-                // If the data type is "D", then it is double precision floating
-                // point
-                readDoubleData(data);
-            } else if (dataType.equalsIgnoreCase("A")) {
-                // If the data type is "A", then it is ASCII.
-                readASCIIData(data);
+            if (decodeAllEvents(data, 0, totalEvents, null, events, null)) {
+                floatEventList = events;
             }
-        }
-
-        // Close the file channel
-        fc.close();
+        } else {
+            double[][] events = new double[parameters][totalEvents];
 
-        // Close the file input stream
-        fis.close();
+            if (decodeAllEvents(data, 0, totalEvents, events, null, null)) {
+                eventList = events;
+            }
+        }
     }
 
     /**
-     * readBinIntData ---
+     * decodeAllEvents ---
      * <p>
-     * Reads binary integers in list mode in the DATA segment and updates
-     * eventList.
+     * Decodes count events starting at event firstEvent of the DATA segment
+     * into the same events of events, floatEvents or intRows, whichever is
+     * not null.
      * </p>
      *
      * <p>
-     * Assumes that the bits for the values are byte-aligned. It needs to be
-     * fixed if that is not the case.
+     * Since every event in list mode has the same width, the events are split
+     * into one contiguous range per decoding thread. Each thread writes a
+     * disjoint slice of the columns, so no synchronization is needed beyond
+     * waiting for all of them to finish.
      * </p>
      *
      * @param data
      *            <code>ByteBuffer</code> containing the DATA segment of the
      *            underlying file.
+     * @param firstEvent
+     *            int index of the first event to decode.
+     * @param count
+     *            int number of events to decode.
+     * @param events
+     *            array of double arrays to decode the events into, or null.
+     * @param floatEvents
+     *            array of float arrays to decode the events into, or null.
+     * @param intRows
+     *            array of int arrays, one per event, to decode the events
+     *            into, or null.
+     * @return boolean flag indicating whether the data type could be decoded.
+     * @throws <code>java.io.IOException</code> if the decoding was
+     *         interrupted.
      */
-    private void readBinIntData(ByteBuffer data) {
-        // Allocate the eventList
-        eventList = new double[parameters][totalEvents];
-
-        int numBytes, value, range, currByte;
+    private boolean decodeAllEvents(final ByteBuffer data, int firstEvent, int count, final double[][] events, final float[][] floatEvents, final int[][] intRows) throws IOException {
+        int threads = Math.min(decodeParallelism, count / MIN_EVENTS_PER_THREAD);
 
-        final int totalEvents = this.totalEvents;
-        final int parameters = this.parameters;
-
-        for (int i = 0; i < totalEvents; i++) {
-            for (int j = 0; j < parameters; j++) {
-                // Calculate the number of bytes used from the number of bits
-                // used
-                // Round up to the next full byte
-                numBytes = (int) Math.ceil(((double) channelBits[j]) / Byte.SIZE);
-
-
-                // Get the range of the current parameter - will let us build
-                // the mask
-                range = (int) channelRange[j];
-
-                // Initialize the current value to 0
-                value = 0;
+        if (threads <= 1) {
+            // Not worth the threads, so decode in this one
+            return decodeEventRange(data, firstEvent, count, events, floatEvents, intRows);
+        }
 
-                if (littleEndianP) {
-                    // If the byte order is little endian, then build the value
-                    // to the left.
-                    for (int k = 0; k < numBytes; k++) {
-                        // Get the next 8 bits masking to make sure Java doesn't
-                        // prepend 1's
-                        currByte = (data.get() & 0xFF);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
 
-                        // Shift the 8 bits into position
-                        currByte <<= (8 * k);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            int rangeSize = (count + threads - 1) / threads;
 
-                        // Or the 8 bits with the current value
-                        value |= currByte;
-                    }
-                } else {
-                    // Otherwise, the byte order is big endian, so build the
-                    // value to the right.
-                    for (int k = 0; k < numBytes; k++) {
-                        // Left shift the previous bits in value to make room
-                        value <<= 8;
+            for (int first = firstEvent; first < firstEvent + count; first += rangeSize) {
+                final int rangeFirst = first;
+                final int rangeCount = Math.min(rangeSize, firstEvent + count - first);
 
-                        // Grab the next 8 bits masking to make sure Java
-                        // doesn't prepend 1's
-                        value |= (data.get() & 0xFF);
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return decodeEventRange(data, rangeFirst, rangeCount, events, floatEvents, intRows);
                     }
-                }
-
-                /**
-                 * From the FCS specification: --- The remaining bits are
-                 * usually unused and set to "0"; however, some file writers
-                 * store non-data information in that bit-space. Implementers
-                 * must use a bit mask when reading these list mode parameter
-                 * values to insure that erroneous values are not read from the
-                 * unused bits.
-                 */
-                // Mask the value based on the range
-                value &= (range - 1);
+                }));
+            }
 
-                // Store the value into the array
-                eventList[j][i] = value;
+            boolean decoded = true;
+            for (Future<Boolean> result : results) {
+                decoded &= result.get();
             }
+            return decoded;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding " + file);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
     /**
-     * readFloatData ---
+     * decodeEventRange ---
      * <p>
-     * Reads floating point values in list mode in the DATA segment and updates
-     * eventList with the integer values of the values.
+     * Decodes count events starting at event firstEvent into the same events
+     * of events, floatEvents or intRows, whichever is not null.
      * </p>
      *
-     * @param data
-     *            <code>ByteBuffer</code> containing the DATA segment of the
-     *            underlying file.
+     * <p>
+     * Float and int events are decoded block by block and narrowed, so the
+     * events are never held as doubles all at once. Ints are truncated like
+     * a cast and laid out one row per event.
+     * </p>
      */
-    private void readFloatData(ByteBuffer data) {
-        // Allocate the eventList
-        eventList = new double[parameters][totalEvents];
-
-        if (littleEndianP) {
-            data.order(ByteOrder.LITTLE_ENDIAN);
+    private boolean decodeEventRange(ByteBuffer data, int firstEvent, int count, double[][] events, float[][] floatEvents, int[][] intRows) {
+        if (events != null) {
+            return decodeEvents(data, firstEvent, count, events, firstEvent);
         }
 
-        // Convert the byte buffer into a float buffer - doesn't get any easier
-        FloatBuffer fb = data.asFloatBuffer();
+        int blockSize = Math.min(DEFAULT_BLOCK_SIZE, count);
+        double[][] block = new double[parameters][blockSize];
 
-        final int totalEvents = this.totalEvents;
-        final int parameters = this.parameters;
+        for (int first = firstEvent; first < firstEvent + count; first += blockSize) {
+            int blockCount = Math.min(blockSize, firstEvent + count - first);
+
+            if (!decodeEvents(data, first, blockCount, block, 0)) {
+                // The data type could not be decoded
+                return false;
+            }
 
-        for (int i = 0; i < totalEvents; i++) {
             for (int j = 0; j < parameters; j++) {
-                // Store the value into the array
-                eventList[j][i] = fb.get();
+                double[] source = block[j];
+
+                if (floatEvents != null) {
+                    float[] column = floatEvents[j];
+                    for (int k = 0; k < blockCount; k++) {
+                        column[first + k] = (float) source[k];
+                    }
+                } else {
+                    for (int k = 0; k < blockCount; k++) {
+                        intRows[first + k][j] = (int) source[k];
+                    }
+                }
             }
         }
+
+        return true;
     }
 
     /**
-     * readDoubleData ---
+     * loadEvents ---
      * <p>
-     * Reads double precision floating point values in list mode in the DATA
-     * segment and updates eventList with the integer values of the values.
+     * Decodes count events starting at event firstEvent into the same events
+     * of either events or floatEvents, whichever is not null, without keeping
+     * them in the event list. Lets a caller decode the events a range at a
+     * time, e.g. to report progress or stop part way.
      * </p>
      *
-     * @param data
-     *            <code>ByteBuffer</code> containing the DATA segment of the
-     *            underlying file.
+     * @return boolean flag indicating whether the data type could be decoded.
+     * @throws <code>java.io.IOException</code> if the DATA segment could not
+     *         be mapped or the decoding was interrupted.
      */
-    private void readDoubleData(ByteBuffer data) {
-        // Allocate the eventList
-        eventList = new double[parameters][totalEvents];
-
-        if (littleEndianP) {
-            data.order(ByteOrder.LITTLE_ENDIAN);
+    boolean loadEvents(int firstEvent, int count, double[][] events, float[][] floatEvents) throws IOException {
+        if ((dataStart >= dataEnd) || !canDecode()) {
+            return false;
         }
-
-        // Convert the byte buffer into a double buffer - doesn't get any easier
-        DoubleBuffer db = data.asDoubleBuffer();
-
-        final int totalEvents = this.totalEvents;
-        final int parameters = this.parameters;
-
-        for (int i = 0; i < totalEvents; i++) {
-            for (int j = 0; j < parameters; j++) {
-                // Store the value into the array
-                eventList[j][i] = db.get();
-            }
+        if (count <= 0) {
+            return true;
+        }
+
+        return decodeAllEvents(getChannelData(), firstEvent, count, events, floatEvents, null);
+    }
+
+    /**
+     * getChannelData ---
+     * <p>
+     * Returns the DATA segment, mapping it on first use.
+     * </p>
+     */
+    private synchronized ByteBuffer getChannelData() throws FileNotFoundException, IOException {
+        if (channelData == null) {
+            channelData = mapData();
+        }
+        return channelData;
+    }
+
+    /**
+     * mapData ---
+     * <p>
+     * Maps the DATA segment of the FCS file into memory using NIO.
+     * </p>
+     *
+     * <p>
+     * The mapping stays valid after the file channel is closed, so the
+     * returned buffer can be handed to readers that outlive this call.
+     * </p>
+     *
+     * @return <code>ByteBuffer</code> containing the DATA segment of the
+     *         underlying file.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    private ByteBuffer mapData() throws FileNotFoundException, IOException {
+        // Open a file input stream to the file
+        FileInputStream fis = new FileInputStream(file);
+
+        // Get the channel for the file
+        FileChannel fc = fis.getChannel();
+
+        // Map the DATA segment to memory
+        MappedByteBuffer data;
+
+        try {
+            data = fc.map(FileChannel.MapMode.READ_ONLY, datasetOffset + dataStart, dataEnd - dataStart + 1);
+        } catch (Throwable t) {
+            // Try again with a workaround to see if we can compensate for off-by-one errors that
+            // some FCS files have been known to incorporate in the ENDDATA property.
+            data = fc.map(FileChannel.MapMode.READ_ONLY, datasetOffset + dataStart, dataEnd - dataStart);
+        }
+
+        // Close the file channel
+        fc.close();
+
+        // Close the file input stream
+        fis.close();
+
+        return data;
+    }
+
+    /**
+     * decodeEvents ---
+     * <p>
+     * Decodes count events starting at event firstEvent of the DATA segment
+     * into dest[parameter][destOffset + k].
+     * </p>
+     *
+     * <p>
+     * In list mode every event has the same width, so any range of events can
+     * be decoded without touching the events before it. The buffer itself is
+     * never repositioned, which lets several readers share one mapping.
+     * </p>
+     *
+     * <p>
+     * For a subsampled file the events are those of the subsample, and each
+     * run of consecutive sampled events is decoded with a single read.
+     * </p>
+     *
+     * @param data
+     *            <code>ByteBuffer</code> containing the DATA segment of the
+     *            underlying file.
+     * @param firstEvent
+     *            int index of the first event to decode.
+     * @param count
+     *            int number of events to decode.
+     * @param dest
+     *            array of double arrays to decode the events into.
+     * @param destOffset
+     *            int index in dest of the first decoded event.
+     * @return boolean flag indicating whether the data type could be decoded.
+     */
+    boolean decodeEvents(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        if (sampledEvents == null) {
+            return decodeDataEvents(data, firstEvent, count, dest, destOffset);
+        }
+
+        for (int k = 0; k < count;) {
+            int start = sampledEvents[firstEvent + k];
+            int run = 1;
+
+            while ((k + run < count) && (sampledEvents[firstEvent + k + run] == start + run)) {
+                run++;
+            }
+
+            if (!decodeDataEvents(data, start, run, dest, destOffset + k)) {
+                return false;
+            }
+            k += run;
+        }
+
+        return true;
+    }
+
+    /**
+     * decodeDataEvents ---
+     * <p>
+     * Decodes count events starting at event firstEvent of the DATA segment,
+     * regardless of any subsample, into dest[parameter][destOffset + k].
+     * </p>
+     */
+    private boolean decodeDataEvents(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        /**
+         * We don't need to worry about endian-ness here since ASCII is one
+         * byte, and float and double are IEEE standards.
+         */
+        if (dataType == null) {
+            return false;
+        } else if (dataType.equalsIgnoreCase("I")) {
+            // If the data type is "I", then it is binary integer.
+            readBinIntData(data, firstEvent, count, dest, destOffset);
+        } else if (dataType.equalsIgnoreCase("F")) {
+            // If the data type is "F", then it is floating point.
+            readFloatData(data, firstEvent, count, dest, destOffset);
+        } else if (dataType.equalsIgnoreCase("D")) {
+            // If the data type is "D", then it is double precision floating
+            // point
+            readDoubleData(data, firstEvent, count, dest, destOffset);
+        } else if (dataType.equalsIgnoreCase("A")) {
+            // If the data type is "A", then it is ASCII.
+            readASCIIData(data, firstEvent, count, dest, destOffset);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * decodeChannel ---
+     * <p>
+     * Decodes the values of a single channel of every event into dest.
+     * </p>
+     *
+     * <p>
+     * Binary list mode events have a fixed width, so the channel is read with
+     * a stride of one event and the other channels are never touched. Other
+     * data types are decoded block by block and the channel is copied out.
+     * </p>
+     *
+     * @param data
+     *            <code>ByteBuffer</code> containing the DATA segment of the
+     *            underlying file.
+     * @param channel
+     *            int number of the channel to decode.
+     * @param dest
+     *            array of doubles of length totalEvents to store the values
+     *            into.
+     * @return boolean flag indicating whether the data type could be decoded.
+     */
+    private boolean decodeChannel(ByteBuffer data, int channel, double[] dest) {
+        if (dataType == null) {
+            return false;
+        }
+
+        // Use a private view so the shared buffer's order is left alone
+        data = data.duplicate();
+        data.order(littleEndianP ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        final int[] events = sampledEvents;
+
+        if (dataType.equalsIgnoreCase("I") && (intLayout == INT_LAYOUT_PACKED)) {
+            final long bitOffset = intBitOffsets[channel];
+            final int numBits = channelBits[channel];
+            final int mask = intMasks[channel];
+            final long stride = intBitsPerEvent;
+
+            for (int i = 0; i < totalEvents; i++) {
+                long bitPos = bitOffset + ((events == null) ? i : events[i]) * stride;
+                dest[i] = ((int) readBits(data, bitPos, numBits)) & mask;
+            }
+        } else if (dataType.equalsIgnoreCase("I")) {
+            int channelOffset = 0;
+            for (int j = 0; j < channel; j++) {
+                channelOffset += intBytes[j];
+            }
+
+            final int numBytes = intBytes[channel];
+            final int mask = intMasks[channel];
+            final int stride = intBytesPerEvent;
+
+            for (int i = 0; i < totalEvents; i++) {
+                int offset = channelOffset + ((events == null) ? i : events[i]) * stride;
+                int value;
+                if (numBytes == 2) {
+                    value = data.getShort(offset);
+                } else if (numBytes == 4) {
+                    value = data.getInt(offset);
+                } else {
+                    value = 0;
+                    for (int k = 0; k < numBytes; k++) {
+                        int currByte = data.get(offset + k) & 0xFF;
+                        if (littleEndianP) {
+                            value |= currByte << (8 * k);
+                        } else {
+                            value = (value << 8) | currByte;
+                        }
+                    }
+                }
+
+                // Mask the value based on the range
+                dest[i] = value & mask;
+            }
+        } else if (dataType.equalsIgnoreCase("F")) {
+            final int stride = parameters * 4;
+            for (int i = 0; i < totalEvents; i++) {
+                dest[i] = data.getFloat(channel * 4 + ((events == null) ? i : events[i]) * stride);
+            }
+        } else if (dataType.equalsIgnoreCase("D")) {
+            final int stride = parameters * 8;
+            for (int i = 0; i < totalEvents; i++) {
+                dest[i] = data.getDouble(channel * 8 + ((events == null) ? i : events[i]) * stride);
+            }
+        } else {
+            int blockSize = Math.min(DEFAULT_BLOCK_SIZE, totalEvents);
+            double[][] block = new double[parameters][blockSize];
+
+            for (int first = 0; first < totalEvents; first += blockSize) {
+                int count = Math.min(blockSize, totalEvents - first);
+
+                if (!decodeEvents(data, first, count, block, 0)) {
+                    return false;
+                }
+                System.arraycopy(block[channel], 0, dest, first, count);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * canDecode ---
+     * <p>
+     * Returns whether the data type of the DATA segment is one decodeEvents
+     * knows how to read.
+     * </p>
+     *
+     * @return boolean flag indicating whether the events can be decoded.
+     */
+    private boolean canDecode() {
+        return (dataType != null)
+                && (dataType.equalsIgnoreCase("I")
+                || dataType.equalsIgnoreCase("F")
+                || dataType.equalsIgnoreCase("D")
+                || dataType.equalsIgnoreCase("A"));
+    }
+
+    /**
+     * readBinIntData ---
+     * <p>
+     * Reads binary integers in list mode in the DATA segment into dest.
+     * </p>
+     *
+     * <p>
+     * Layouts where every parameter is 16 or 32 bits wide are read through a
+     * buffer view, other byte-aligned layouts a byte at a time, and layouts
+     * with parameters that are not a whole number of bytes wide as a stream
+     * of bits.
+     * </p>
+     *
+     * @param data
+     *            <code>ByteBuffer</code> containing the DATA segment of the
+     *            underlying file.
+     * @param firstEvent
+     *            int index of the first event to read.
+     * @param count
+     *            int number of events to read.
+     * @param dest
+     *            array of double arrays to store the events into.
+     * @param destOffset
+     *            int index in dest of the first event read.
+     */
+    private void readBinIntData(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        if (intLayout == INT_LAYOUT_16) {
+            readInt16Data(data, firstEvent, count, dest, destOffset);
+            return;
+        } else if (intLayout == INT_LAYOUT_32) {
+            readInt32Data(data, firstEvent, count, dest, destOffset);
+            return;
+        } else if (intLayout == INT_LAYOUT_PACKED) {
+            readPackedIntData(data, firstEvent, count, dest, destOffset);
+            return;
+        }
+
+        int numBytes, value;
+
+        final int parameters = this.parameters;
+        final int[] intBytes = this.intBytes;
+        final int[] intMasks = this.intMasks;
+
+        // Use a private view so the shared buffer's position is left alone
+        data = data.duplicate();
+        data.position(firstEvent * intBytesPerEvent);
+
+        for (int i = destOffset; i < destOffset + count; i++) {
+            for (int j = 0; j < parameters; j++) {
+                // Get the number of bytes used by the parameter
+                numBytes = intBytes[j];
+
+                // Initialize the current value to 0
+                value = 0;
+
+                if (littleEndianP) {
+                    // If the byte order is little endian, then build the value
+                    // to the left.
+                    for (int k = 0; k < numBytes; k++) {
+                        // Get the next 8 bits masking to make sure Java doesn't
+                        // prepend 1's, shift them into position and or them
+                        // with the current value
+                        value |= (data.get() & 0xFF) << (8 * k);
+                    }
+                } else {
+                    // Otherwise, the byte order is big endian, so build the
+                    // value to the right.
+                    for (int k = 0; k < numBytes; k++) {
+                        // Left shift the previous bits in value to make room
+                        value <<= 8;
+
+                        // Grab the next 8 bits masking to make sure Java
+                        // doesn't prepend 1's
+                        value |= (data.get() & 0xFF);
+                    }
+                }
+
+                /**
+                 * From the FCS specification: --- The remaining bits are
+                 * usually unused and set to "0"; however, some file writers
+                 * store non-data information in that bit-space. Implementers
+                 * must use a bit mask when reading these list mode parameter
+                 * values to insure that erroneous values are not read from the
+                 * unused bits.
+                 */
+                // Mask the value based on the range and store it into the
+                // array
+                dest[j][i] = value & intMasks[j];
+            }
+        }
+    }
+
+    /**
+     * readInt16Data ---
+     * <p>
+     * Reads binary integers in list mode in the DATA segment into dest when
+     * every parameter is stored in 16 bits.
+     * </p>
+     *
+     * @see #readBinIntData(ByteBuffer, int, int, double[][], int)
+     */
+    private void readInt16Data(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        final int parameters = this.parameters;
+        final int[] intMasks = this.intMasks;
+
+        // Use a private view so the shared buffer's position and order are
+        // left alone
+        data = data.duplicate();
+        data.order(littleEndianP ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        data.position(firstEvent * intBytesPerEvent);
+
+        ShortBuffer values = data.asShortBuffer();
+
+        for (int i = destOffset; i < destOffset + count; i++) {
+            for (int j = 0; j < parameters; j++) {
+                // The mask also drops the sign extension of the short
+                dest[j][i] = values.get() & intMasks[j];
+            }
+        }
+    }
+
+    /**
+     * readInt32Data ---
+     * <p>
+     * Reads binary integers in list mode in the DATA segment into dest when
+     * every parameter is stored in 32 bits.
+     * </p>
+     *
+     * @see #readBinIntData(ByteBuffer, int, int, double[][], int)
+     */
+    private void readInt32Data(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        final int parameters = this.parameters;
+        final int[] intMasks = this.intMasks;
+
+        // Use a private view so the shared buffer's position and order are
+        // left alone
+        data = data.duplicate();
+        data.order(littleEndianP ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        data.position(firstEvent * intBytesPerEvent);
+
+        IntBuffer values = data.asIntBuffer();
+
+        for (int i = destOffset; i < destOffset + count; i++) {
+            for (int j = 0; j < parameters; j++) {
+                dest[j][i] = values.get() & intMasks[j];
+            }
+        }
+    }
+
+    /**
+     * readPackedIntData ---
+     * <p>
+     * Reads binary integers in list mode in the DATA segment into dest when
+     * the values are packed, i.e. some parameter is not a whole number of
+     * bytes wide and the values follow each other with no padding.
+     * </p>
+     *
+     * <p>
+     * Each value is shifted out of the 64-bit word holding it, so the bits
+     * are never looped over one at a time.
+     * </p>
+     *
+     * @see #readBinIntData(ByteBuffer, int, int, double[][], int)
+     * @see #readBits(ByteBuffer, long, int)
+     */
+    private void readPackedIntData(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        final int parameters = this.parameters;
+        final int[] channelBits = this.channelBits;
+        final int[] intMasks = this.intMasks;
+
+        // Use a private view so the shared buffer's order is left alone
+        data = data.duplicate();
+        data.order(littleEndianP ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        long bitPos = (long) firstEvent * intBitsPerEvent;
+
+        for (int i = destOffset; i < destOffset + count; i++) {
+            for (int j = 0; j < parameters; j++) {
+                dest[j][i] = ((int) readBits(data, bitPos, channelBits[j])) & intMasks[j];
+                bitPos += channelBits[j];
+            }
+        }
+    }
+
+    /**
+     * readBits ---
+     * <p>
+     * Reads the numBits wide value starting bitPos bits into data, which
+     * must have the byte order of the file.
+     * </p>
+     *
+     * <p>
+     * The bits follow the byte order: in a big endian file the first bit of
+     * the stream is the most significant bit of the first byte, and in a
+     * little endian file the least significant. Byte-aligned values read this
+     * way are the same as those read a byte at a time. Values can be up to
+     * 57 bits wide, the most that always fits in a word read from the byte
+     * holding the first bit. Words running past the end of the DATA segment
+     * are padded with zeros.
+     * </p>
+     *
+     * @param data
+     *            <code>ByteBuffer</code> containing the DATA segment of the
+     *            underlying file.
+     * @param bitPos
+     *            long index of the first bit of the value in data.
+     * @param numBits
+     *            int number of bits in the value.
+     * @return long the value.
+     */
+    private long readBits(ByteBuffer data, long bitPos, int numBits) {
+        if (numBits <= 0) {
+            return 0;
+        }
+
+        final int index = (int) (bitPos >>> 3);
+        final int shift = (int) (bitPos & 7);
+        long word;
+
+        if (index + 8 <= data.limit()) {
+            word = data.getLong(index);
+        } else {
+            // Assemble the last word from the bytes that are left
+            word = 0;
+            for (int k = 0; k < 8; k++) {
+                long currByte = (index + k < data.limit()) ? (data.get(index + k) & 0xFF) : 0;
+                if (littleEndianP) {
+                    word |= currByte << (8 * k);
+                } else {
+                    word = (word << 8) | currByte;
+                }
+            }
+        }
+
+        if (littleEndianP) {
+            return (word >>> shift) & (-1L >>> (64 - numBits));
+        } else {
+            return (word << shift) >>> (64 - numBits);
+        }
+    }
+
+    /**
+     * readFloatData ---
+     * <p>
+     * Reads floating point values in list mode in the DATA segment into dest.
+     * </p>
+     *
+     * @param data
+     *            <code>ByteBuffer</code> containing the DATA segment of the
+     *            underlying file.
+     * @param firstEvent
+     *            int index of the first event to read.
+     * @param count
+     *            int number of events to read.
+     * @param dest
+     *            array of double arrays to store the events into.
+     * @param destOffset
+     *            int index in dest of the first event read.
+     */
+    private void readFloatData(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        // Use a private view so the shared buffer's position and order are
+        // left alone
+        data = data.duplicate();
+
+        if (littleEndianP) {
+            data.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Convert the byte buffer into a float buffer - doesn't get any easier
+        FloatBuffer fb = data.asFloatBuffer();
+
+        final int parameters = this.parameters;
+
+        fb.position(firstEvent * parameters);
+
+        for (int i = destOffset; i < destOffset + count; i++) {
+            for (int j = 0; j < parameters; j++) {
+                // Store the value into the array
+                dest[j][i] = fb.get();
+            }
+        }
+    }
+
+    /**
+     * readDoubleData ---
+     * <p>
+     * Reads double precision floating point values in list mode in the DATA
+     * segment into dest.
+     * </p>
+     *
+     * @param data
+     *            <code>ByteBuffer</code> containing the DATA segment of the
+     *            underlying file.
+     * @param firstEvent
+     *            int index of the first event to read.
+     * @param count
+     *            int number of events to read.
+     * @param dest
+     *            array of double arrays to store the events into.
+     * @param destOffset
+     *            int index in dest of the first event read.
+     */
+    private void readDoubleData(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        // Use a private view so the shared buffer's position and order are
+        // left alone
+        data = data.duplicate();
+
+        if (littleEndianP) {
+            data.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Convert the byte buffer into a double buffer - doesn't get any easier
+        DoubleBuffer db = data.asDoubleBuffer();
+
+        final int parameters = this.parameters;
+
+        db.position(firstEvent * parameters);
+
+        for (int i = destOffset; i < destOffset + count; i++) {
+            for (int j = 0; j < parameters; j++) {
+                // Store the value into the array
+                dest[j][i] = db.get();
+            }
         }
     }
 
     /**
      * readASCIIData ---
      * <p>
-     * Reads ASCII values in list mode in the DATA segment and updates eventList
-     * with the integer values of the values.
+     * Reads ASCII values in list mode in the DATA segment into dest.
+     * </p>
+     *
+     * <p>
+     * Fixed width values take $PnB bytes each. Delimited values are separated
+     * by any run of spaces, tabs, commas, carriage returns and line feeds.
+     * Either way the digits are parsed straight from the bytes without
+     * creating any strings.
+     * </p>
+     *
+     * @param data
+     *            <code>ByteBuffer</code> containing the DATA segment of the
+     *            underlying file.
+     * @param firstEvent
+     *            int index of the first event to read.
+     * @param count
+     *            int number of events to read.
+     * @param dest
+     *            array of double arrays to store the events into.
+     * @param destOffset
+     *            int index in dest of the first event read.
+     */
+    private void readASCIIData(ByteBuffer data, int firstEvent, int count, double[][] dest, int destOffset) {
+        final int parameters = this.parameters;
+
+        if (asciiDelimited) {
+            int[] eventStarts = getASCIIEventStarts(data);
+            int limit = data.limit();
+
+            for (int i = destOffset; i < destOffset + count; i++) {
+                int currByte = eventStarts[firstEvent + i - destOffset];
+
+                for (int j = 0; j < parameters; j++) {
+                    // Skip the delimiters before the value
+                    while ((currByte < limit) && isASCIIDelimiter(data.get(currByte))) {
+                        currByte++;
+                    }
+
+                    int valueStart = currByte;
+                    while ((currByte < limit) && !isASCIIDelimiter(data.get(currByte))) {
+                        currByte++;
+                    }
+
+                    dest[j][i] = parseASCII(data, valueStart, currByte);
+                }
+            }
+            return;
+        }
+
+        /**
+         * Calculate the number of characters in each event of the flow file
+         */
+        // Initialize the number of characters in each event to 0
+        int numCharsPerEvent = 0;
+
+        // Loop through all the parameters adding the number of characters in
+        // each parameter
+        for (int j = 0; j < parameters; j++) {
+            numCharsPerEvent += channelBits[j];
+        }
+
+        // Start at the first character of the first event
+        int currChar = firstEvent * numCharsPerEvent;
+
+        for (int i = destOffset; i < destOffset + count; i++) {
+            for (int j = 0; j < parameters; j++) {
+                // Store the value into the array
+                dest[j][i] = parseASCII(data, currChar, currChar + channelBits[j]);
+
+                // Increment the current character
+                currChar += channelBits[j];
+            }
+        }
+    }
+
+    /**
+     * getASCIIEventStarts ---
+     * <p>
+     * Returns the offset of every event of delimited ASCII data, scanning the
+     * DATA segment the first time it is called. Events missing from the end
+     * of the DATA segment start at its end, so they decode as zeros.
+     * </p>
+     */
+    private synchronized int[] getASCIIEventStarts(ByteBuffer data) {
+        if (asciiEventStarts != null) {
+            return asciiEventStarts;
+        }
+
+        int[] eventStarts = new int[getDataEventCount()];
+        int limit = data.limit();
+        int currByte = 0;
+        int event = 0;
+
+        while (event < eventStarts.length) {
+            // Skip the delimiters before the event
+            while ((currByte < limit) && isASCIIDelimiter(data.get(currByte))) {
+                currByte++;
+            }
+            eventStarts[event++] = currByte;
+
+            // Skip the values of the event
+            for (int j = 0; j < parameters; j++) {
+                while ((currByte < limit) && isASCIIDelimiter(data.get(currByte))) {
+                    currByte++;
+                }
+                while ((currByte < limit) && !isASCIIDelimiter(data.get(currByte))) {
+                    currByte++;
+                }
+            }
+        }
+
+        asciiEventStarts = eventStarts;
+        return eventStarts;
+    }
+
+    private static boolean isASCIIDelimiter(byte b) {
+        return (b == ' ') || (b == ',') || (b == '\t') || (b == '\r') || (b == '\n') || (b == 0);
+    }
+
+    /**
+     * parseASCII ---
+     * <p>
+     * Parses the ASCII number in bytes from to to - 1 of data, ignoring
+     * surrounding spaces. Integers, decimals and exponents are handled
+     * without allocating; only numbers with more than 15 significant digits
+     * fall back to <code>Double.parseDouble</code>. Anything that is not a
+     * number is 0, as it was when the values were parsed as strings.
+     * </p>
+     */
+    static double parseASCII(ByteBuffer data, int from, int to) {
+        // Trim the spaces around the number
+        while ((from < to) && (data.get(from) == ' ')) {
+            from++;
+        }
+        while ((to > from) && (data.get(to - 1) == ' ')) {
+            to--;
+        }
+        if (from == to) {
+            return 0;
+        }
+
+        int pos = from;
+        boolean negative = false;
+        byte b = data.get(pos);
+
+        if ((b == '-') || (b == '+')) {
+            negative = (b == '-');
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        boolean anyDigits = false;
+
+        for (; pos < to; pos++) {
+            b = data.get(pos);
+
+            if ((b >= '0') && (b <= '9')) {
+                anyDigits = true;
+                if ((mantissa == 0) && (b == '0')) {
+                    // Leading zeros are not significant
+                    if (fraction) {
+                        scale++;
+                    }
+                    continue;
+                }
+                if (++digits > 15) {
+                    return parseASCIISlow(data, from, to);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction) {
+                    scale++;
+                }
+            } else if ((b == '.') && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+
+        if (!anyDigits) {
+            return 0;
+        }
+
+        if (pos < to) {
+            // Only an exponent may follow the digits
+            if ((b != 'e') && (b != 'E')) {
+                return 0;
+            }
+            pos++;
+
+            boolean negativeExponent = false;
+            if ((pos < to) && ((data.get(pos) == '-') || (data.get(pos) == '+'))) {
+                negativeExponent = (data.get(pos) == '-');
+                pos++;
+            }
+            if (pos == to) {
+                return 0;
+            }
+
+            int exponent = 0;
+            for (; pos < to; pos++) {
+                b = data.get(pos);
+                if ((b < '0') || (b > '9')) {
+                    return 0;
+                }
+                exponent = exponent * 10 + (b - '0');
+                if (exponent > 400) {
+                    return parseASCIISlow(data, from, to);
+                }
+            }
+            scale += negativeExponent ? exponent : -exponent;
+        }
+
+        double value;
+        if (scale == 0) {
+            value = mantissa;
+        } else if ((scale > 0) && (scale < POWERS_OF_TEN.length)) {
+            // Both are exact doubles, so the division is correctly rounded
+            value = mantissa / POWERS_OF_TEN[scale];
+        } else if ((scale < 0) && (-scale < POWERS_OF_TEN.length)) {
+            value = mantissa * POWERS_OF_TEN[-scale];
+        } else {
+            return parseASCIISlow(data, from, to);
+        }
+
+        return negative ? -value : value;
+    }
+
+    // The powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static double parseASCIISlow(ByteBuffer data, int from, int to) {
+        char[] chars = new char[to - from];
+        for (int k = 0; k < chars.length; k++) {
+            chars[k] = (char) (data.get(from + k) & 0xFF);
+        }
+        try {
+            return Double.parseDouble(new String(chars));
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /**
+     * getEventBlocks ---
+     * <p>
+     * Returns an iterator over the events in blocks of at most blockSize
+     * events, decoded directly from the mapped DATA segment.
+     * </p>
+     *
+     * <p>
+     * Unlike getEventList(), the events are never held in memory all at once,
+     * so this is the way to make a single pass over a large file.
+     * </p>
+     *
+     * @param blockSize
+     *            int maximum number of events in each block.
+     * @return <code>EventBlockIterator</code> over the events.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    public EventBlockIterator getEventBlocks(int blockSize) throws FileNotFoundException, IOException {
+        return createEventBlocks(blockSize, false);
+    }
+
+    /**
+     * getCompensatedEventBlocks ---
+     * <p>
+     * Returns an iterator over the events in blocks of at most blockSize
+     * events, each block compensated by the SPILL matrix.
+     * </p>
+     *
+     * @param blockSize
+     *            int maximum number of events in each block.
+     * @return <code>EventBlockIterator</code> over the compensated events.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    public EventBlockIterator getCompensatedEventBlocks(int blockSize) throws FileNotFoundException, IOException {
+        return createEventBlocks(blockSize, true);
+    }
+
+    private EventBlockIterator createEventBlocks(int blockSize, boolean compensate) throws FileNotFoundException, IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+
+        if ((dataStart >= dataEnd) || (totalEvents <= 0) || !canDecode()) {
+            // Nothing to read, so hand out an empty iterator
+            return new EventBlockIterator(this, null, blockSize, false);
+        }
+
+        return new EventBlockIterator(this, mapData(), blockSize, compensate);
+    }
+
+    /**
+     * getEventList ---
+     * <p>
+     * Returns the event list.
+     * <p>
+     *
+     * <p>
+     * With STORAGE_FLOAT the events are held as floats, so every call returns
+     * a new, fully widened copy of them that takes twice their memory.
+     * Callers that only need some of the channels should use
+     * getChannelEvents() instead.
+     * </p>
+     *
+     * @return array of double arrays containing the events.
+     */
+    public double[][] getEventList() {
+        if (storageMode == STORAGE_FLOAT) {
+            if ((floatEventList == null) && (mappedColumns != null) && !mappedColumnsCompensated) {
+                // Widen the raw columns straight from the column cache
+                return toDoubleArrays(mappedColumns);
+            }
+            float[][] events = getFloatEventList();
+            if (events == null) {
+                return null;
+            }
+            double[][] widened = new double[events.length][];
+            for (int i = 0; i < events.length; i++) {
+                widened[i] = toDoubleArray(events[i]);
+            }
+            return widened;
+        }
+
+        if (eventList == null) {
+            // If the array of events is null, then try to extract the events
+            // from the FCS file.
+            try {
+                // Try to extract the events
+                extractEvents();
+            } catch (FileNotFoundException fnfe) {
+                // If a FileNotFoundException occurred, then return an empty
+                // array of events.
+                return new double[0][0];
+            } catch (IOException ioe) {
+                // If a IOException occurred, then return an empty array of
+                // events.
+                return new double[0][0];
+            }
+        }
+
+        // Return the array of events
+        return eventList;
+    }
+
+    /**
+     * getFloatEventList ---
+     * <p>
+     * Returns the event list as one float array per channel.
+     * </p>
+     *
+     * <p>
+     * With STORAGE_FLOAT this is the stored event list itself; otherwise it
+     * is a narrowed copy of getEventList(). If a column cache of the raw
+     * events is open, they are copied from it onto the heap once and kept;
+     * getMappedColumns() reads them without copying.
+     * </p>
+     *
+     * @return array of float arrays containing the events.
+     */
+    public float[][] getFloatEventList() {
+        if (storageMode != STORAGE_FLOAT) {
+            // The events are stored as doubles, so narrow a copy of them
+            double[][] events = getEventList();
+            if (events == null) {
+                return null;
+            }
+            float[][] narrowed = new float[events.length][];
+            for (int i = 0; i < events.length; i++) {
+                narrowed[i] = new float[events[i].length];
+                for (int j = 0; j < events[i].length; j++) {
+                    narrowed[i][j] = (float) events[i][j];
+                }
+            }
+            return narrowed;
+        }
+
+        if ((floatEventList == null) && (mappedColumns != null) && !mappedColumnsCompensated) {
+            // The raw columns are in the column cache, so skip the decoding
+            floatEventList = copyColumns(mappedColumns);
+        }
+
+        if (floatEventList == null) {
+            // If the array of events is null, then try to extract the events
+            // from the FCS file.
+            try {
+                // Try to extract the events
+                extractEvents();
+            } catch (FileNotFoundException fnfe) {
+                // If a FileNotFoundException occurred, then return an empty
+                // array of events.
+                return new float[0][0];
+            } catch (IOException ioe) {
+                // If a IOException occurred, then return an empty array of
+                // events.
+                return new float[0][0];
+            }
+        }
+
+        // Return the array of events
+        return floatEventList;
+    }
+
+    /**
+     * getIntEventRows ---
+     * <p>
+     * Returns the event list as one int array per event, each value
+     * truncated like a cast.
+     * </p>
+     *
+     * <p>
+     * The list is not kept. If the events are already held as doubles,
+     * floats or raw mapped columns they are narrowed from those; otherwise
+     * they are decoded a block at a time straight into the rows, so no more
+     * than a block of columns per decoding thread is held besides them.
+     * </p>
+     *
+     * @return array of int arrays containing the events, or null if they
+     *         could not be decoded.
+     */
+    public int[][] getIntEventRows() {
+        if ((dataStart >= dataEnd) || (totalEvents <= 0)) {
+            return new int[0][parameters];
+        }
+
+        int[][] rows = new int[totalEvents][parameters];
+
+        if (eventList != null) {
+            for (int j = 0; j < parameters; j++) {
+                double[] column = eventList[j];
+                for (int i = 0; i < totalEvents; i++) {
+                    rows[i][j] = (int) column[i];
+                }
+            }
+        } else if (floatEventList != null) {
+            for (int j = 0; j < parameters; j++) {
+                float[] column = floatEventList[j];
+                for (int i = 0; i < totalEvents; i++) {
+                    rows[i][j] = (int) column[i];
+                }
+            }
+        } else if ((mappedColumns != null) && !mappedColumnsCompensated) {
+            for (int j = 0; j < parameters; j++) {
+                FloatBuffer column = mappedColumns[j];
+                for (int i = 0; i < totalEvents; i++) {
+                    rows[i][j] = (int) column.get(i);
+                }
+            }
+        } else {
+            try {
+                if (!canDecode() || !decodeAllEvents(getChannelData(), 0, totalEvents, null, null, rows)) {
+                    return null;
+                }
+            } catch (IOException ioe) {
+                return null;
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * getChannelEvents ---
+     * <p>
+     * Returns the events of a single channel as doubles.
+     * </p>
+     *
+     * <p>
+     * With STORAGE_FLOAT only this channel is widened, so callers that need
+     * doubles do not have to widen the whole event list.
+     * </p>
+     *
+     * @param channelNumber
+     *            int number of the channel.
+     * @return array of doubles containing the events of the channel.
+     */
+    public double[] getChannelEvents(int channelNumber) {
+        if (eventList != null) {
+            return eventList[channelNumber];
+        }
+        if (floatEventList != null) {
+            return toDoubleArray(floatEventList[channelNumber]);
+        }
+
+        // Nothing is decoded yet, so decode only this channel, or widen it
+        // from the column cache
+        return getLazyChannel(channelNumber, false);
+    }
+
+    /**
+     * getCompensatedChannelEvents ---
+     * <p>
+     * Returns the compensated events of a single channel as doubles.
+     * </p>
+     *
+     * <p>
+     * Only the channel itself is decoded, unless it is a spill channel, since
+     * compensation mixes all the spill channels of an event. A spill channel
+     * is compensated from the event blocks instead, one block at a time, so
+     * only one block of the spill channels is decoded at once and only the
+     * compensated channel is cached. If a column cache is open the channel
+     * is widened, or compensated, from its columns instead. The result is
+     * cached like the raw channels and must not be modified.
+     * </p>
+     *
+     * @param channelNumber
+     *            int number of the channel.
+     * @return array of doubles containing the compensated events of the
+     *         channel.
+     */
+    public double[] getCompensatedChannelEvents(int channelNumber) {
+        return getLazyChannel(channelNumber, true);
+    }
+
+    /**
+     * getLazyChannel ---
+     * <p>
+     * Returns a channel from the channel cache, decoding and caching it first
+     * if it is not there. While a column cache is open the channel is taken
+     * from its columns whenever they hold it, so every accessor returns the
+     * same values.
+     * </p>
+     *
+     * @param channelNumber
+     *            int number of the channel.
+     * @param compensated
+     *            boolean flag indicating whether to compensate the channel.
+     * @return array of doubles containing the events of the channel, or an
+     *         empty array if they could not be decoded.
+     */
+    private synchronized double[] getLazyChannel(int channelNumber, boolean compensated) {
+        boolean spillChannel = (compensated || isMappedColumnsCompensated()) && prepareCompensation()
+                && compensation.isSpillChannel(channelNumber);
+
+        if (!spillChannel) {
+            // Compensation leaves this channel alone, so share the raw column
+            compensated = false;
+        }
+
+        Integer key = Integer.valueOf(compensated ? parameters + channelNumber : channelNumber);
+        double[] events = channelCache.get(key);
+
+        if (events != null) {
+            return events;
+        }
+
+        if ((mappedColumns != null) && (!spillChannel || (mappedColumnsCompensated == compensated))) {
+            // The column cache holds the channel as asked for
+            events = toDoubleArray(mappedColumns[channelNumber]);
+        } else if (compensated && (mappedColumns != null)) {
+            // Compensate the channel from the raw spill columns in the column
+            // cache, in the same order as the blocks below
+            int start = compensation.getStart();
+            double[] coefficients = compensation.getRow(channelNumber - start);
+
+            events = new double[totalEvents];
+            for (int k = 0; k < coefficients.length; k++) {
+                FloatBuffer column = mappedColumns[start + k];
+                double coefficient = coefficients[k];
+                for (int i = 0; i < totalEvents; i++) {
+                    events[i] += coefficient * column.get(i);
+                }
+            }
+        } else if (compensated) {
+            // Compensate the channel a block at a time from the raw spill
+            // channels, rather than decoding every spill channel whole
+            int start = compensation.getStart();
+            int n = compensation.getSize();
+            double[] coefficients = compensation.getRow(channelNumber - start);
+            int decoded = 0;
+
+            events = new double[totalEvents];
+            try {
+                EventBlockIterator blocks = getEventBlocks(DEFAULT_BLOCK_SIZE);
+                while (blocks.hasNext()) {
+                    double[][] block = blocks.next();
+                    int first = blocks.getBlockStart();
+                    int count = block[start].length;
+                    for (int i = 0; i < count; i++) {
+                        double sum = 0;
+                        for (int k = 0; k < n; k++) {
+                            sum += coefficients[k] * block[start + k][i];
+                        }
+                        events[first + i] = sum;
+                    }
+                    decoded = first + count;
+                }
+            } catch (IOException ioe) {
+                return new double[0];
+            }
+
+            if (decoded != totalEvents) {
+                return new double[0];
+            }
+        } else {
+            if ((dataStart >= dataEnd) || (totalEvents <= 0) || !canDecode()) {
+                return new double[0];
+            }
+
+            events = new double[totalEvents];
+
+            ByteBuffer data;
+            try {
+                data = getChannelData();
+            } catch (IOException ioe) {
+                return new double[0];
+            }
+
+            if (!decodeChannel(data, channelNumber, events)) {
+                return new double[0];
+            }
+        }
+
+        if (storageMode == STORAGE_FLOAT) {
+            // Round to the floats the event list holds, so both agree
+            for (int i = 0; i < events.length; i++) {
+                events[i] = (float) events[i];
+            }
+        }
+
+        channelCache.put(key, events);
+        return events;
+    }
+
+    /**
+     * getChannelCacheSize ---
+     * <p>
+     * Returns the number of lazily decoded channels kept in memory.
+     * </p>
+     *
+     * @return int number of cached channels.
+     */
+    public int getChannelCacheSize() {
+        return channelCacheSize;
+    }
+
+    /**
+     * setChannelCacheSize ---
+     * <p>
+     * Sets the number of lazily decoded channels kept in memory. The least
+     * recently used channels are evicted first.
+     * </p>
+     *
+     * @param size
+     *            int number of cached channels.
+     */
+    public synchronized void setChannelCacheSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Channel cache size must be at least 1: " + size);
+        }
+        channelCacheSize = size;
+
+        // Evict down to the new size, least recently used first
+        Iterator<Integer> keys = channelCache.keySet().iterator();
+        while (channelCache.size() > channelCacheSize) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * toDoubleArray ---
+     * <p>
+     * Widens an array of floats to a new array of doubles.
+     * </p>
+     *
+     * @param values
+     *            array of floats to widen.
+     * @return array of doubles with the same values.
+     */
+    static double[] toDoubleArray(float[] values) {
+        double[] widened = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            widened[i] = values[i];
+        }
+        return widened;
+    }
+
+    /**
+     * toDoubleArray ---
+     * <p>
+     * Widens the floats of a buffer, from index 0 to its limit, to a new
+     * array of doubles.
+     * </p>
+     *
+     * @param values
+     *            <code>FloatBuffer</code> of floats to widen.
+     * @return array of doubles with the same values.
+     */
+    static double[] toDoubleArray(FloatBuffer values) {
+        double[] widened = new double[values.limit()];
+        for (int i = 0; i < widened.length; i++) {
+            widened[i] = values.get(i);
+        }
+        return widened;
+    }
+
+    private static double[][] toDoubleArrays(FloatBuffer[] columns) {
+        double[][] widened = new double[columns.length][];
+        for (int j = 0; j < columns.length; j++) {
+            widened[j] = toDoubleArray(columns[j]);
+        }
+        return widened;
+    }
+
+    /**
+     * getCompensatedEventList ---
+     * <p>
+     * Returns the event list compensated by the SPILL matrix.
+     * </p>
+     *
+     * <p>
+     * Only the compensated channels are newly allocated; the other channels
+     * are shared with getEventList() and must not be modified.
+     * </p>
+     *
+     * <p>
+     * With STORAGE_FLOAT every call returns a new, fully widened copy
+     * instead, like getEventList(), compensated in place so the float
+     * events are not copied first. Callers that only need some of the
+     * channels should use getCompensatedChannelEvents() instead.
+     * </p>
+     *
+     * @return array of double arrays containing the events.
+     */
+    public double[][] getCompensatedEventList() {
+        if (storageMode == STORAGE_FLOAT) {
+            if (isMappedColumnsCompensated()) {
+                return toDoubleArrays(mappedColumns);
+            }
+            double[][] widened = this.getEventList();
+            if ((widened.length != this.getNumChannels()) || !prepareCompensation())
+                return widened;
+
+            // Compensate the widened copy in place, narrowing the compensated
+            // channels like getCompensatedFloatEventList() does
+            compensation.apply(widened, 0, widened[0].length, decodeParallelism);
+            for (int k = compensation.getStart(); k < compensation.getStart() + compensation.getSize(); k++) {
+                double[] column = widened[k];
+                for (int i = 0; i < column.length; i++) {
+                    column[i] = (float) column[i];
+                }
+            }
+            return widened;
+        }
+
+        double[][] events = this.getEventList();
+        if (events.length != this.getNumChannels())
+            return events;  // Unable to extract the underlying events
+
+        if (!prepareCompensation())
+            return events;  // No compensation, just return the events
+
+        // Copy the compensated channels and apply
+        // transpose(inverse(<SPILL MATRIX>)) to them in place
+        double[][] compensated = events.clone();
+        for (int k = compensation.getStart(); k < compensation.getStart() + compensation.getSize(); k++) {
+            compensated[k] = events[k].clone();
+        }
+        compensation.apply(compensated, 0, compensated[0].length, decodeParallelism);
+        return compensated;
+    }
+
+    /**
+     * getCompensatedFloatEventList ---
+     * <p>
+     * Returns the float event list compensated by the SPILL matrix.
+     * </p>
+     *
+     * <p>
+     * Only the compensated channels are newly allocated; the other channels
+     * are shared with getFloatEventList() and must not be modified. If a
+     * column cache of the compensated events is open, they are copied from
+     * it onto the heap once and kept; getMappedColumns() reads them without
+     * copying.
+     * </p>
+     *
+     * @return array of float arrays containing the events.
+     */
+    public synchronized float[][] getCompensatedFloatEventList() {
+        if ((mappedColumns != null) && mappedColumnsCompensated) {
+            // The compensated columns are in the column cache
+            if (compensatedFloatEventList == null) {
+                compensatedFloatEventList = copyColumns(mappedColumns);
+            }
+            return compensatedFloatEventList;
+        }
+
+        float[][] events = this.getFloatEventList();
+        if (events.length != this.getNumChannels())
+            return events;  // Unable to extract the underlying events
+
+        if (!prepareCompensation())
+            return events;  // No compensation, just return the events
+
+        // Copy the compensated channels and apply
+        // transpose(inverse(<SPILL MATRIX>)) to them in place
+        float[][] compensated = events.clone();
+        for (int k = compensation.getStart(); k < compensation.getStart() + compensation.getSize(); k++) {
+            compensated[k] = events[k].clone();
+        }
+        compensation.apply(compensated, 0, compensated[0].length, decodeParallelism);
+        return compensated;
+    }
+
+    /**
+     * getDefaultColumnCacheFile ---
+     * <p>
+     * Returns the sidecar file next to the FCS file used as its column cache
+     * when the caller does not choose one.
      * </p>
      *
-     * @param data
-     *            <code>ByteBuffer</code> containing the DATA segment of the
-     *            underlying file.
+     * @param file
+     *            <code>File</code> object pointing to the FCS file.
+     * @return <code>File</code> object pointing to the column cache.
      */
-    private void readASCIIData(ByteBuffer data) {
-        /**
-         * Calculate the number of characters in each event of the flow file
-         */
-        // Initialize the number of characters in each event to 0
-        int numCharsPerEvent = 0;
+    public static File getDefaultColumnCacheFile(File file) {
+        return new File(file.getPath() + COLUMN_CACHE_EXTENSION);
+    }
 
-        // Loop through all the parameters adding the number of characters in
-        // each parameter
-        for (int i = 0; i < parameters; i++) {
-            numCharsPerEvent += channelBits[i];
+    /**
+     * writeColumnCache ---
+     * <p>
+     * Writes the decoded, and optionally compensated, events into a column
+     * cache file that openColumnCache() can map back in later instead of
+     * decoding the DATA segment again.
+     * </p>
+     *
+     * <p>
+     * The file holds a 64 byte header followed by one contiguous column of
+     * native-order floats per channel. The header records the size and
+     * modification time of the FCS file and the offset of the dataset, so a
+     * stale cache or the cache of another dataset is never opened.
+     * The events are streamed block by block, so writing the cache does not
+     * need the event list in memory. The cache is written to a temporary
+     * file first and renamed into place when complete.
+     * </p>
+     *
+     * <p>
+     * A subsampled file has no column cache, since its events differ from
+     * one subsample to the next, and neither has a file stored as doubles,
+     * since the cache holds floats.
+     * </p>
+     *
+     * @param cacheFile
+     *            <code>File</code> object pointing to the column cache.
+     * @param compensated
+     *            boolean flag for whether to write the compensated events.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    public void writeColumnCache(File cacheFile, boolean compensated) throws FileNotFoundException, IOException {
+        if (sampledEvents != null) {
+            throw new IllegalStateException("Cannot write a column cache of a subsample: " + file);
+        }
+        if (storageMode != STORAGE_FLOAT) {
+            throw new IllegalStateException("Cannot write a column cache of events stored as doubles: " + file);
         }
 
-        // Allocate the eventList
-        eventList = new double[parameters][totalEvents];
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            writeColumns(tempFile, compensated);
+        } catch (IOException ioe) {
+            // Leave no partial cache behind
+            tempFile.delete();
+            throw ioe;
+        } catch (RuntimeException re) {
+            tempFile.delete();
+            throw re;
+        }
 
-        // Convert the byte buffer into a char buffer - doesn't get any easier
-        CharBuffer cb = data.asCharBuffer();
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            tempFile.delete();
+            throw new IOException("Unable to replace column cache " + cacheFile);
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to write column cache " + cacheFile);
+        }
+    }
 
-        // Initialize the current character to 0
-        int currChar = 0;
+    private void writeColumns(File tempFile, boolean compensated) throws FileNotFoundException, IOException {
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        FileChannel fc = raf.getChannel();
 
-        for (int i = 0; i < totalEvents; i++) {
-            for (int j = 0; j < parameters; j++) {
-                try {
-                    // Store the value into the array
-                    eventList[j][i] = Integer.parseInt(cb.subSequence(currChar, currChar + channelBits[i]).toString());
-                } catch (NumberFormatException nfe) {
-                    eventList[j][i] = 0;
-                }
+        try {
+            raf.setLength(0);
+
+            ByteBuffer header = ByteBuffer.allocate(COLUMN_CACHE_HEADER_SIZE).order(ByteOrder.nativeOrder());
+            header.putLong(COLUMN_CACHE_MAGIC);
+            header.putInt(compensated ? 1 : 0);
+            header.putInt(parameters);
+            header.putInt(totalEvents);
+            header.putLong(file.length());
+            header.putLong(file.lastModified());
+            header.putLong(datasetOffset);
+            header.clear();
+            writeFully(fc, header, 0);
+
+            EventBlockIterator blocks = compensated
+                    ? getCompensatedEventBlocks(DEFAULT_BLOCK_SIZE)
+                    : getEventBlocks(DEFAULT_BLOCK_SIZE);
+            ByteBuffer out = ByteBuffer.allocateDirect(DEFAULT_BLOCK_SIZE * 4).order(ByteOrder.nativeOrder());
+
+            while (blocks.hasNext()) {
+                double[][] block = blocks.next();
+
+                for (int j = 0; j < block.length; j++) {
+                    out.clear();
+                    for (int k = 0; k < block[j].length; k++) {
+                        out.putFloat((float) block[j][k]);
+                    }
+                    out.flip();
 
-                // Increment the current character
-                currChar += channelBits[i];
+                    // Column j starts right after the columns before it
+                    writeFully(fc, out, COLUMN_CACHE_HEADER_SIZE
+                            + 4L * ((long) j * totalEvents + blocks.getBlockStart()));
+                }
             }
+        } finally {
+            fc.close();
+            raf.close();
         }
     }
 
     /**
-     * getEventList ---
-     * <p>
-     * Returns the event list.
+     * openColumnCache ---
      * <p>
+     * Maps the columns of a column cache file written by writeColumnCache().
+     * Once open, the accessors read the events from the mapped columns
+     * instead of decoding the DATA segment, and getMappedColumns() gives
+     * zero-copy access to them.
+     * </p>
      *
-     * @return array of double arrays containing the events.
+     * @param cacheFile
+     *            <code>File</code> object pointing to the column cache.
+     * @param compensated
+     *            boolean flag for whether the cache must hold the compensated
+     *            events.
+     * @return boolean flag indicating whether the cache was opened; false if
+     *         it is missing, stale or was written for other events, or if the
+     *         events are stored as doubles.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
      */
-    public double[][] getEventList() {
-        if (eventList == null) {
-            // If the array of events is null, then try to extract the events
-            // from the FCS file.
-            try {
-                // Try to extract the events
-                extractEvents();
-            } catch (FileNotFoundException fnfe) {
-                // If a FileNotFoundException occurred, then return an empty
-                // array of events.
-                return new double[0][0];
-            } catch (IOException ioe) {
-                // If a IOException occurred, then return an empty array of
-                // events.
-                return new double[0][0];
-            }
+    public boolean openColumnCache(File cacheFile, boolean compensated) throws IOException {
+        if ((sampledEvents != null) || (storageMode != STORAGE_FLOAT)) {
+            // The cached floats would not match the doubles the other
+            // accessors decode
+            return false;
         }
 
-        // Return the array of events
-        return eventList;
+        long columnSize = 4L * totalEvents;
+
+        if (!cacheFile.isFile() || (cacheFile.length() < COLUMN_CACHE_HEADER_SIZE + columnSize * parameters)) {
+            return false;
+        }
+
+        FileInputStream fis = new FileInputStream(cacheFile);
+        FileChannel fc = fis.getChannel();
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(COLUMN_CACHE_HEADER_SIZE).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining() && (fc.read(header) >= 0)) {
+                // Keep reading until the header is full
+            }
+            header.flip();
+
+            if ((header.remaining() < COLUMN_CACHE_HEADER_SIZE)
+                    || (header.getLong() != COLUMN_CACHE_MAGIC)
+                    || ((header.getInt() != 0) != compensated)
+                    || (header.getInt() != parameters)
+                    || (header.getInt() != totalEvents)
+                    || (header.getLong() != file.length())
+                    || (header.getLong() != file.lastModified())
+                    || (header.getLong() != datasetOffset)) {
+                // Written by another byte order or for another version of the
+                // file, so it has to be rebuilt
+                return false;
+            }
+
+            // Map each column on its own so no single mapping exceeds 2GB
+            FloatBuffer[] columns = new FloatBuffer[parameters];
+            for (int j = 0; j < parameters; j++) {
+                columns[j] = fc.map(FileChannel.MapMode.READ_ONLY, COLUMN_CACHE_HEADER_SIZE + columnSize * j, columnSize)
+                        .order(ByteOrder.nativeOrder())
+                        .asFloatBuffer();
+            }
+
+            synchronized (this) {
+                // Drop the channels decoded before, so every accessor reads
+                // the same floats from now on
+                mappedColumns = columns;
+                mappedColumnsCompensated = compensated;
+                compensatedFloatEventList = null;
+                channelCache.clear();
+            }
+            return true;
+        } finally {
+            // The mappings stay valid after the channel is closed
+            fc.close();
+            fis.close();
+        }
     }
 
     /**
-     * getCompensatedEventList ---
-     * <p>
-     * Returns the event list compensated by the SPILL matrix.
+     * useColumnCache ---
      * <p>
+     * Opens the column cache, writing it first if it is missing or stale.
+     * A subsample or a file stored as doubles has no column cache.
+     * </p>
      *
-     * @return array of double arrays containing the events.
+     * @param cacheFile
+     *            <code>File</code> object pointing to the column cache.
+     * @param compensated
+     *            boolean flag for whether the cache holds the compensated
+     *            events.
+     * @return boolean flag indicating whether the cache is open.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
      */
-    public double[][] getCompensatedEventList() {
-        double[][] events = this.getEventList();
-        if (events.length != this.getNumChannels())
-            return events;  // Unable to extract the underlying events
-
-        // Convert the SPILL string to a compensation matrix
-        String compString = this.getSpillString();
-        if (compString == null)
-            return events;  // No compensation, just return the events
+    public boolean useColumnCache(File cacheFile, boolean compensated) throws IOException {
+        if ((sampledEvents != null) || (storageMode != STORAGE_FLOAT)) {
+            return false;
+        }
+        if (openColumnCache(cacheFile, compensated)) {
+            return true;
+        }
 
-        // Split the compensation string into its values
-        //
-        // The basic structure for SPILL* is:
-        // $SPILLOVER/n,string1,string2,...,f1,f2,f3,f4,.../
+        writeColumnCache(cacheFile, compensated);
+        return openColumnCache(cacheFile, compensated);
+    }
 
-        String[] compValues = compString.split(",");
-        String[] compNames  = null;
-        String[] compData   = null;
-        int compDataStart   = 0;
+    /**
+     * getMappedColumns ---
+     * <p>
+     * Returns read-only views of the columns mapped from the column cache, or
+     * null if no column cache is open.
+     * </p>
+     *
+     * @return array of <code>FloatBuffer</code> containing the events.
+     */
+    public FloatBuffer[] getMappedColumns() {
+        if (mappedColumns == null) {
+            return null;
+        }
 
-        int n = 0;
-        try {
-            // Try to parse the number of acquisition parameters
-            n = Integer.parseInt(compValues[0]);
-            if (n <= 0 || n > this.parameters)
-                throw new NumberFormatException();
-        } catch (NumberFormatException nfe) {
-            //CyLogger.getLogger().error("Failed to parse parameter count in spill string",nfe);
-            return events;
+        FloatBuffer[] columns = new FloatBuffer[mappedColumns.length];
+        for (int j = 0; j < columns.length; j++) {
+            columns[j] = mappedColumns[j].asReadOnlyBuffer();
         }
+        return columns;
+    }
+
+    /**
+     * isMappedColumnsCompensated ---
+     * <p>
+     * Returns whether the open column cache holds the compensated events.
+     * </p>
+     *
+     * @return boolean flag indicating whether the mapped columns are
+     *         compensated.
+     */
+    public boolean isMappedColumnsCompensated() {
+        return (mappedColumns != null) && mappedColumnsCompensated;
+    }
 
-        compNames = Arrays.copyOfRange(compValues, 1, n+1);
+    /**
+     * collectColumns ---
+     * <p>
+     * Adds the event columns the file holds to heapColumns, as double and
+     * float arrays, and to mappedColumns, as the buffers mapped from the
+     * column cache. Callers use identity sets, so columns shared with other
+     * lists are only counted once.
+     * </p>
+     */
+    synchronized void collectColumns(Set<Object> heapColumns, Set<Object> mappedColumns) {
+        if (eventList != null) {
+            heapColumns.addAll(Arrays.asList((Object[]) eventList));
+        }
+        if (floatEventList != null) {
+            heapColumns.addAll(Arrays.asList((Object[]) floatEventList));
+        }
+        if (compensatedFloatEventList != null) {
+            heapColumns.addAll(Arrays.asList((Object[]) compensatedFloatEventList));
+        }
+        heapColumns.addAll(channelCache.values());
+        if (this.mappedColumns != null) {
+            mappedColumns.addAll(Arrays.asList((Object[]) this.mappedColumns));
+        }
+    }
 
-        // Match names in spill string to columns in parameter lists
-        compDataStart = Arrays.asList(this.channelShortname).indexOf(compNames[0]);
-        if (compDataStart < 0) {
-            //CyLogger.getLogger().error("Failed to match channel "+compNames[0]+" to parameter in file");
-            return events;  // Failure match spill string names to channels
+    private static float[][] copyColumns(FloatBuffer[] columns) {
+        float[][] copy = new float[columns.length][];
+        for (int j = 0; j < columns.length; j++) {
+            FloatBuffer column = columns[j].duplicate();
+            column.clear();
+            copy[j] = new float[column.remaining()];
+            column.get(copy[j]);
         }
-        for (int i = 0; i < n; i++) {
-            if (!compNames[i].equals(this.channelShortname[compDataStart + i])) {
-                //CyLogger.getLogger().error("Spill channel are not continguous parameters in file");
-                return events;  // Spill string columns not in order
-            }
+        return copy;
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fc.write(buffer, position);
         }
+    }
 
-       // Extract actual compensation data
-        compData  = Arrays.copyOfRange(compValues, n+1, compValues.length);
-        if (compData.length != (n*n))
-            return events;
+    /**
+     * compensateBlock ---
+     * <p>
+     * Compensates a block of events laid out like getEventList() in place by
+     * the SPILL matrix.
+     * </p>
+     *
+     * @param block
+     *            array of double arrays containing the events to compensate.
+     */
+    void compensateBlock(double[][] block) {
+        if ((block.length != this.getNumChannels()) || (block.length == 0) || (block[0].length == 0))
+            return;  // Nothing to compensate
 
-        /**
-         * Populate the compensation matrix --- The values are stored in
-         * row-major order, i.e., the elements in the first row appear
-         * first.
-         */
-        double[][] matrix = new double[n][n];
+        if (!prepareCompensation())
+            return;  // No compensation, leave the block as is
 
-        // Loop through the array of compensation values
-        for (int i=0; i<n; i++) {
-            for (int j=0; j<n; j++) {
-                try {
-                    matrix[i][j] = Double.parseDouble(compData[i*n+j]);
-                } catch (NumberFormatException nfe) {
-                    // Set default value If a NumberFormatException occurred
-                    matrix[i][j] = 0.0d;
-                }
-            }
-        }
+        compensation.apply(block, 0, block[0].length);
+    }
+
+    /**
+     * getCompensation ---
+     * <p>
+     * Returns the compensation of the spill channels, or null if the events
+     * are not compensated.
+     * </p>
+     */
+    SpillCompensation getCompensation() {
+        return prepareCompensation() ? compensation : null;
+    }
+
+    /**
+     * prepareCompensation ---
+     * <p>
+     * Looks up transpose(inverse(SPILL)) for the SPILL string and channels of
+     * this file, which is kept for all later calls. Files sharing a SPILL
+     * string and channel layout share the inverted matrix.
+     * </p>
+     *
+     * @return boolean flag indicating whether the events can be compensated.
+     */
+    private boolean prepareCompensation() {
+        if (compensation != null)
+            return true;
 
-        // Compute the inverse of the compensation data and then apply
-        // to data matrix (which is column major). Specifically compute
-        // transpose(inverse(<SPILL MATRIX>)) * data
-        RealMatrix comp =
-                (new LUDecompositionImpl(new Array2DRowRealMatrix(matrix)))
-                .getSolver()
-                .getInverse();
-        RealMatrix data = new BlockRealMatrix(events);
-        data.setSubMatrix(  // Update compensated portion of data matrix
-                comp
-                .transpose()
-                .multiply(data.getSubMatrix(compDataStart, compDataStart+n-1, 0, this.getEventCount()-1))
-                .getData(),
-                
-                compDataStart, 0
-                );
-        return data.getData();
+        compensation = SpillCompensation.forSpillString(this.getSpillString(), this.channelShortname);
+        return compensation != null;
     }
 
     /**
@@ -1318,6 +3164,10 @@ public final class fcsFile {
     }
 
     public String getText() {
+        if ((text == null) && (textBytes != null)) {
+            // Only decode the whole TEXT segment when it is asked for
+            text = new String(textBytes, charset);
+        }
         return text;
     }
 
@@ -1703,7 +3553,7 @@ public final class fcsFile {
      *         containing all the settings of the FCS file.
      */
     public Properties getSettings() {
-        return settings;
+        return (settings == null) ? null : settings.toProperties();
     }
 
     /**
@@ -1718,6 +3568,91 @@ public final class fcsFile {
         return totalEvents;
     }
 
+    /**
+     * getDataEventCount ---
+     * <p>
+     * Returns the number of events in the DATA segment, which is more than
+     * getEventCount() for a subsampled file.
+     * </p>
+     *
+     * @return int number of events in the DATA segment.
+     */
+    public int getDataEventCount() {
+        return (sampledEvents == null) ? totalEvents : dataEvents;
+    }
+
+    /**
+     * isSampled ---
+     * <p>
+     * Returns whether only a subsample of the events is extracted.
+     * </p>
+     *
+     * @return boolean flag indicating whether the file is subsampled.
+     */
+    public boolean isSampled() {
+        return sampledEvents != null;
+    }
+
+    /**
+     * getDecodeParallelism ---
+     * <p>
+     * Returns the number of threads used to decode the DATA segment and to
+     * compensate the event list.
+     * </p>
+     *
+     * @return int number of decoding threads.
+     */
+    public int getDecodeParallelism() {
+        return decodeParallelism;
+    }
+
+    /**
+     * setDecodeParallelism ---
+     * <p>
+     * Sets the number of threads used to decode the DATA segment the next
+     * time the events are extracted, and to compensate the event list. Use 1
+     * to do both on the calling thread.
+     * </p>
+     *
+     * @param parallelism
+     *            int number of decoding threads.
+     */
+    public void setDecodeParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        decodeParallelism = parallelism;
+    }
+
+    /**
+     * setDefaultDecodeParallelism ---
+     * <p>
+     * Sets the number of decoding threads of files created from now on,
+     * including files whose events are extracted by the constructor.
+     * </p>
+     *
+     * @param parallelism
+     *            int number of decoding threads.
+     */
+    public static void setDefaultDecodeParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        defaultDecodeParallelism = parallelism;
+    }
+
+    /**
+     * getStorageMode ---
+     * <p>
+     * Returns how the decoded events are stored.
+     * </p>
+     *
+     * @return int storage mode, either STORAGE_DOUBLE or STORAGE_FLOAT.
+     */
+    public int getStorageMode() {
+        return storageMode;
+    }
+
     /**
      * getSpillString ---
      * <p>
@@ -1825,6 +3760,98 @@ public final class fcsFile {
         }
     }
 
+    /**
+     * getDatasetOffsets ---
+     * <p>
+     * Returns the byte offset of the HEADER of every dataset in the file, in
+     * file order, by following the $NEXTDATA chain from the first dataset.
+     * </p>
+     *
+     * <p>
+     * Only the HEADER and TEXT segment of each dataset are read, never its
+     * DATA segment. The chain stops at a $NEXTDATA of 0, at a $NEXTDATA that
+     * does not move forward or at anything that is not an FCS dataset. The
+     * offsets can be passed to the constructor to read any single dataset.
+     * </p>
+     *
+     * @param file
+     *            <code>java.io.File</code> object to the file to index.
+     * @return array of the byte offsets of the datasets, which is empty if
+     *         the file is not an FCS file.
+     * @throws <code>java.io.FileNotFoundException</code> if the file is not
+     *         found.
+     * @throws <code>java.io.IOException</code> if an IO exception occurred.
+     */
+    public static long[] getDatasetOffsets(File file) throws FileNotFoundException, IOException {
+        List<Long> offsets = new ArrayList<Long>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            long length = raf.length();
+            long offset = 0;
+            byte[] headerArray = new byte[58];
+
+            while (offset + headerArray.length <= length) {
+                raf.seek(offset);
+                raf.readFully(headerArray);
+
+                if (!new String(headerArray, 0, VERSION_SIZE, charset).startsWith(FCS_PREFIX)) {
+                    break;
+                }
+                offsets.add(Long.valueOf(offset));
+
+                int start, end;
+                try {
+                    start = Integer.parseInt((new String(headerArray, 10, 8, charset)).trim());
+                    end = Integer.parseInt((new String(headerArray, 18, 8, charset)).trim());
+                } catch (NumberFormatException nfe) {
+                    break;
+                }
+                if ((start <= 0) || (end < start) || (offset + end >= length)) {
+                    break;
+                }
+
+                // Find $NEXTDATA in the TEXT segment
+                byte[] textArray = new byte[end - start + 1];
+                raf.seek(offset + start);
+                raf.readFully(textArray);
+                String next = new FCSKeywords(textArray).getProperty("$NEXTDATA");
+
+                long nextData;
+                try {
+                    nextData = (next == null) ? 0 : Long.parseLong(next);
+                } catch (NumberFormatException nfe) {
+                    break;
+                }
+                if (nextData <= 0) {
+                    break;
+                }
+                offset += nextData;
+            }
+        } finally {
+            raf.close();
+        }
+
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i).longValue();
+        }
+        return result;
+    }
+
+    /**
+     * getDatasetOffset ---
+     * <p>
+     * Returns the byte offset of the HEADER of the dataset read from the
+     * file, which is 0 for the first dataset.
+     * </p>
+     *
+     * @return long byte offset of the dataset.
+     */
+    public long getDatasetOffset() {
+        return datasetOffset;
+    }
+
     /**
      * Testing Code ---
      * <p>
@@ -160,19 +160,38 @@ private class xParamChanged implements ActionListener {
                 BufferedImage image;
                 try {
                     JOptionPane.showMessageDialog(null, "no exception");
-                    image = facs.Plot2D.drawPlot(
-                            cs,
-                            fcsOps.getSelectedNodesCount() == 0 ? fcsOps.getEvents(xAxisParam) : fcsOps.getSelectedEvents(xAxisParam),
-                            fcsOps.getSelectedNodesCount() == 0 ? fcsOps.getEvents(yAxisParam) : fcsOps.getSelectedEvents(yAxisParam),
-                            fcsOps.getSelectedNodesCount() == 0 ? null : fcsOps.getEvents(xAxisParam),
-                            fcsOps.getSelectedNodesCount() == 0 ? null : fcsOps.getEvents(yAxisParam),
-                            xAxisParam,
-                            yAxisParam,
-                            fcsOps.getEventMax(xAxisParam),
-                            fcsOps.getEventMax(yAxisParam),
-                            xAxisType,
-                            yAxisType
-                            );
+                    if (fcsOps.isStreamed()) {
+                        // Bin all the events a block at a time rather than
+                        // decoding both channels whole
+                        image = facs.Plot2D.drawPlot(
+                                cs,
+                                fcsOps.getSelectedNodesCount() == 0 ? null : fcsOps.getSelectedEvents(xAxisParam),
+                                fcsOps.getSelectedNodesCount() == 0 ? null : fcsOps.getSelectedEvents(yAxisParam),
+                                fcsOps.getEventBlocks(fcsFile.DEFAULT_BLOCK_SIZE),
+                                fcsOps.getFCSFile().getChannelIdFromShortName(xAxisParam),
+                                fcsOps.getFCSFile().getChannelIdFromShortName(yAxisParam),
+                                xAxisParam,
+                                yAxisParam,
+                                fcsOps.getEventMax(xAxisParam),
+                                fcsOps.getEventMax(yAxisParam),
+                                xAxisType,
+                                yAxisType
+                                );
+                    } else {
+                        image = facs.Plot2D.drawPlot(
+                                cs,
+                                fcsOps.getSelectedNodesCount() == 0 ? fcsOps.getEvents(xAxisParam) : fcsOps.getSelectedEvents(xAxisParam),
+                                fcsOps.getSelectedNodesCount() == 0 ? fcsOps.getEvents(yAxisParam) : fcsOps.getSelectedEvents(yAxisParam),
+                                fcsOps.getSelectedNodesCount() == 0 ? null : fcsOps.getEvents(xAxisParam),
+                                fcsOps.getSelectedNodesCount() == 0 ? null : fcsOps.getEvents(yAxisParam),
+                                xAxisParam,
+                                yAxisParam,
+                                fcsOps.getEventMax(xAxisParam),
+                                fcsOps.getEventMax(yAxisParam),
+                                xAxisType,
+                                yAxisType
+                                );
+                    }
                     Plot.setIcon(new ImageIcon(image));
                 } catch (IOException ex) {
                     JOptionPane.showMessageDialog(null, "exception");